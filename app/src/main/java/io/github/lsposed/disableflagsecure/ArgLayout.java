@@ -0,0 +1,55 @@
+package io.github.lsposed.disableflagsecure;
+
+import java.lang.reflect.Member;
+import java.util.Arrays;
+
+/**
+ * Argument indices of each overload a hooker is bound to, resolved when the overload is hooked,
+ * so the hooker reads its arguments directly instead of searching them on every call.
+ */
+final class ArgLayout {
+    private static final class Entry {
+        final Member member;
+        final int[] indices;
+
+        Entry(Member member, int[] indices) {
+            this.member = member;
+            this.indices = indices;
+        }
+    }
+
+    // Copy on write, an overload or two per hooker
+    private volatile Entry[] entries = new Entry[0];
+
+    synchronized void put(Member member, int... indices) {
+        var current = entries;
+        var next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = new Entry(member, indices);
+        entries = next;
+    }
+
+    /**
+     * @return null if the member was never bound
+     */
+    int[] get(Member member) {
+        var current = entries;
+        for (var entry : current) {
+            if (entry.member == member) return entry.indices;
+        }
+        // The framework may hand out a copy of the hooked member
+        for (var entry : current) {
+            if (entry.member.equals(member)) return entry.indices;
+        }
+        return null;
+    }
+
+    /**
+     * Index of the first parameter of the given type at or after {@code from}, or -1.
+     */
+    static int indexOf(Class<?>[] parameterTypes, String typeName, int from) {
+        for (int i = from; i < parameterTypes.length; i++) {
+            if (parameterTypes[i].getName().equals(typeName)) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,44 @@
+package io.github.lsposed.disableflagsecure;
+
+/**
+ * Per-thread markers for the system_server methods whose callees must keep their original
+ * behavior. Entry/exit hooks on the marked methods bump a counter, so hookers only need to
+ * read it instead of walking the stack.
+ */
+final class CallSite {
+    // setInitialSurfaceControlProperties / createSurfaceLocked
+    static final int SURFACE = 0;
+    // createVirtualDisplayLocked
+    static final int VIRTUAL_DISPLAY = 1;
+
+    private static final int COUNT = 2;
+
+    private static final ThreadLocal<int[]> depths = ThreadLocal.withInitial(() -> new int[COUNT]);
+
+    // Bit set of sites whose entry/exit hooks are installed
+    private static volatile int tracked = 0;
+
+    private CallSite() {
+    }
+
+    static synchronized void setTracked(int site) {
+        tracked |= 1 << site;
+    }
+
+    static boolean isTracked(int site) {
+        return (tracked & (1 << site)) != 0;
+    }
+
+    static void enter(int site) {
+        depths.get()[site]++;
+    }
+
+    static void exit(int site) {
+        var depth = depths.get();
+        if (depth[site] > 0) depth[site]--;
+    }
+
+    static boolean inside(int site) {
+        return depths.get()[site] != 0;
+    }
+}
@@ -0,0 +1,100 @@
+package io.github.lsposed.disableflagsecure;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Makes a CaptureArgs include secure layers. One implementation per field variant, chosen once
+ * when the field is resolved and bound to a setter for it, so the hooker neither branches on
+ * the SDK nor goes through reflection.
+ */
+abstract class CapturePolicy {
+    // ScreenCaptureInternal.SECURE_CONTENT_POLICY_CAPTURE
+    private static final int SECURE_CONTENT_POLICY_CAPTURE = 1;
+
+    final Field field;
+
+    private CapturePolicy(Field field) {
+        this.field = field;
+    }
+
+    Class<?> captureArgsClass() {
+        return field.getDeclaringClass();
+    }
+
+    abstract void apply(Object captureArgs) throws Throwable;
+
+    /**
+     * mCaptureSecureLayers (boolean, S~Baklava) or mSecureContentPolicy (int, Baklava QPR+).
+     */
+    static CapturePolicy of(Field field) {
+        field.setAccessible(true);
+        try {
+            var setter = MethodHandles.lookup().unreflectSetter(field)
+                    .asType(MethodType.methodType(void.class, Object.class, field.getType()));
+            if (field.getType() == boolean.class) return new BooleanPolicy(field, setter);
+            if (field.getType() == int.class) return new IntPolicy(field, setter);
+        } catch (IllegalAccessException ignored) {
+            // Final fields are not writable through a handle on some builds
+        }
+        return reflective(field);
+    }
+
+    static CapturePolicy reflective(Field field) {
+        field.setAccessible(true);
+        return new ReflectivePolicy(field);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + field.getDeclaringClass().getName() + "#" + field.getName() + ")";
+    }
+
+    private static final class BooleanPolicy extends CapturePolicy {
+        private final MethodHandle setter;
+
+        BooleanPolicy(Field field, MethodHandle setter) {
+            super(field);
+            this.setter = setter;
+        }
+
+        @Override
+        void apply(Object captureArgs) throws Throwable {
+            setter.invokeExact(captureArgs, true);
+        }
+    }
+
+    private static final class IntPolicy extends CapturePolicy {
+        private final MethodHandle setter;
+
+        IntPolicy(Field field, MethodHandle setter) {
+            super(field);
+            this.setter = setter;
+        }
+
+        @Override
+        void apply(Object captureArgs) throws Throwable {
+            setter.invokeExact(captureArgs, SECURE_CONTENT_POLICY_CAPTURE);
+        }
+    }
+
+    private static final class ReflectivePolicy extends CapturePolicy {
+        private final boolean secureContentPolicy;
+
+        ReflectivePolicy(Field field) {
+            super(field);
+            secureContentPolicy = field.getType() == int.class;
+        }
+
+        @Override
+        void apply(Object captureArgs) throws IllegalAccessException {
+            if (secureContentPolicy) {
+                field.setInt(captureArgs, SECURE_CONTENT_POLICY_CAPTURE);
+            } else {
+                field.setBoolean(captureArgs, true);
+            }
+        }
+    }
+}
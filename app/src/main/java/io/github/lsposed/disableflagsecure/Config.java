@@ -0,0 +1,304 @@
+package io.github.lsposed.disableflagsecure;
+
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * Module settings from the remote preferences, compiled into an immutable snapshot. Hookers read
+ * {@link #current()} once per call; every preference change publishes a new snapshot. In
+ * system_server {@link LocalSettings} set from dumpsys come first.
+ * <p>
+ * Keys: {@code hook.<name>} and {@code package.<name>} (boolean, default true),
+ * {@code uid_policy} (see {@link UidPolicy}, checked against the owner of a window),
+ * {@code recorder_policy} (same spec, checked against the owner of a virtual display, the app recording or
+ * casting), {@code sdk} (0 for the device SDK),
+ * {@code stats}, {@code trace} and {@code capture_on_build} (boolean, default false),
+ * {@code watchdog} (one of {@link #WATCHDOG_MODES}, default off) and {@code budget.<name>}
+ * (int microseconds per hook call, default 0 for no budget, see {@link LatencyWatchdog}),
+ * {@code max_sessions} (int, virtual displays tracked by {@link VirtualDisplaySessions}, 0 for none),
+ * {@code secure_index} and {@code deopt_stats} (boolean, default false, see {@link SecureWindows} and
+ * {@link DeoptStats}), {@code prune} (one of {@link #PRUNE_MODES}, default off, see {@link HookUsage}) and
+ * {@code prune_keep} (comma separated hook names never pruned).
+ */
+final class Config {
+    static final String GROUP = "config";
+    private static final String KEY_HOOK = "hook.";
+    private static final String KEY_PACKAGE = "package.";
+    private static final String KEY_UID_POLICY = "uid_policy";
+    private static final String KEY_RECORDER_POLICY = "recorder_policy";
+    private static final String KEY_SDK = "sdk";
+    private static final String KEY_STATS = "stats";
+    private static final String KEY_TRACE = "trace";
+    private static final String KEY_CAPTURE_ON_BUILD = "capture_on_build";
+    private static final String KEY_WATCHDOG = "watchdog";
+    private static final String KEY_BUDGET = "budget.";
+    private static final String KEY_MAX_SESSIONS = "max_sessions";
+    private static final String KEY_SECURE_INDEX = "secure_index";
+    private static final String KEY_DEOPT_STATS = "deopt_stats";
+    private static final String KEY_PRUNE = "prune";
+    private static final String KEY_PRUNE_KEEP = "prune_keep";
+
+    // Indexed by the HookStats hook IDs
+    static final String[] HOOKS = {
+            "secure_locked", "create_display", "virtual_display", "screen_capture",
+            "check_permission", "constant_returns", "contains_secure_layers", "secure_window"};
+
+    static final int WATCHDOG_OFF = 0;
+    static final int WATCHDOG_DISABLE = 1;
+    static final int WATCHDOG_UNHOOK = 2;
+    static final String[] WATCHDOG_MODES = {"off", "disable", "unhook"};
+
+    static final int PRUNE_OFF = 0;
+    static final int PRUNE_LEARN = 1;
+    static final int PRUNE_ON = 2;
+    static final String[] PRUNE_MODES = {"off", "learn", "on"};
+
+    // Budgets are opt-in per hook, a slow or throttled device must not lose its bypass on its own
+    private static final int[] DEFAULT_BUDGETS = new int[HOOKS.length];
+    private static final int DEFAULT_MAX_SESSIONS = 256;
+
+    static final Config DEFAULT = new Config(0, Set.of(), UidPolicy.ALL, UidPolicy.ALL, Build.VERSION.SDK_INT, false, false, false,
+            WATCHDOG_OFF, DEFAULT_BUDGETS, DEFAULT_MAX_SESSIONS, false, false,
+            PRUNE_OFF, 0);
+
+    private static volatile Config current = DEFAULT;
+
+    // Bit set of disabled hook IDs
+    private final int disabledHooks;
+    private final Set<String> disabledPackages;
+    final UidPolicy uidPolicy;
+    // Virtual displays made secure, decided on their owner; what they mirror is not known when created
+    final UidPolicy recorderPolicy;
+    // SDK level the hooks are chosen for
+    final int sdk;
+    final boolean stats;
+    final boolean trace;
+    // Override CaptureArgs when it is constructed instead of on each native capture, takes a reboot
+    final boolean captureOnBuild;
+    final int watchdog;
+    // Microseconds, indexed by the HookStats hook IDs
+    private final int[] budgets;
+    final int maxSessions;
+    // Clear FLAG_SECURE when windows are added or relaid out instead of hooking isSecureLocked, takes a reboot
+    final boolean secureIndex;
+    // Count and time the deoptimized methods, takes a reboot
+    final boolean deoptStats;
+    // Skip hooks that never changed behavior on this build, takes a reboot
+    final int prune;
+    // Bit set of hook IDs installed even if unused
+    private final int pruneKeep;
+
+    private Config(int disabledHooks, Set<String> disabledPackages, UidPolicy uidPolicy, UidPolicy recorderPolicy,
+                   int sdk, boolean stats, boolean trace, boolean captureOnBuild, int watchdog, int[] budgets,
+                   int maxSessions, boolean secureIndex, boolean deoptStats, int prune, int pruneKeep) {
+        this.disabledHooks = disabledHooks;
+        this.disabledPackages = disabledPackages;
+        this.uidPolicy = uidPolicy;
+        this.recorderPolicy = recorderPolicy;
+        this.sdk = sdk;
+        this.stats = stats;
+        this.trace = trace;
+        this.captureOnBuild = captureOnBuild;
+        this.watchdog = watchdog;
+        this.budgets = budgets;
+        this.maxSessions = maxSessions;
+        this.secureIndex = secureIndex;
+        this.deoptStats = deoptStats;
+        this.prune = prune;
+        this.pruneKeep = pruneKeep;
+    }
+
+    static Config current() {
+        return current;
+    }
+
+    /**
+     * Replaces the snapshot; changes derived from the current one go through {@link #update}.
+     */
+    static synchronized void publish(Config config) {
+        current = config;
+        HookStats.setEnabled(config.stats);
+        HookStats.setWatched(config.watchdog != WATCHDOG_OFF);
+        TraceBuffer.setSampling(config.trace);
+        SecureWindows.setDeciding(config.enabled(HookStats.SECURE_WINDOW));
+    }
+
+    /**
+     * Publishes the change applied to the current snapshot. Serialized with {@link #publish}, so a
+     * preference update, a dumpsys command and the watchdog changing it at once do not lose each
+     * other's change.
+     */
+    static synchronized void update(UnaryOperator<Config> change) {
+        publish(change.apply(current));
+    }
+
+    /**
+     * @throws IllegalArgumentException if a value does not parse
+     * @throws ClassCastException       if a preference was stored with another type
+     */
+    static Config compile(SharedPreferences preferences) {
+        int disabledHooks = 0;
+        for (int i = 0; i < HOOKS.length; i++) {
+            if (!preferences.getBoolean(KEY_HOOK + HOOKS[i], true)) disabledHooks |= 1 << i;
+        }
+        var disabledPackages = new HashSet<String>();
+        for (var entry : preferences.getAll().entrySet()) {
+            if (entry.getKey().startsWith(KEY_PACKAGE) && Boolean.FALSE.equals(entry.getValue())) {
+                disabledPackages.add(entry.getKey().substring(KEY_PACKAGE.length()));
+            }
+        }
+        var sdk = preferences.getInt(KEY_SDK, 0);
+        var watchdog = Arrays.asList(WATCHDOG_MODES).indexOf(preferences.getString(KEY_WATCHDOG, "off"));
+        if (watchdog < 0) throw new IllegalArgumentException("unknown watchdog mode");
+        var budgets = new int[HOOKS.length];
+        for (int i = 0; i < HOOKS.length; i++) {
+            budgets[i] = preferences.getInt(KEY_BUDGET + HOOKS[i], 0);
+            if (budgets[i] < 0) throw new IllegalArgumentException("negative budget for " + HOOKS[i]);
+        }
+        var maxSessions = preferences.getInt(KEY_MAX_SESSIONS, DEFAULT_MAX_SESSIONS);
+        if (maxSessions < 0) throw new IllegalArgumentException("negative max_sessions");
+        var prune = Arrays.asList(PRUNE_MODES).indexOf(preferences.getString(KEY_PRUNE, "off"));
+        if (prune < 0) throw new IllegalArgumentException("unknown prune mode");
+        int pruneKeep = 0;
+        for (var name : preferences.getString(KEY_PRUNE_KEEP, "").split(",")) {
+            if (name.trim().isEmpty()) continue;
+            var hook = hook(name.trim());
+            if (hook < 0) throw new IllegalArgumentException("unknown hook in prune_keep: " + name);
+            pruneKeep |= 1 << hook;
+        }
+        return new Config(disabledHooks, Set.copyOf(disabledPackages),
+                UidPolicy.parse(preferences.getString(KEY_UID_POLICY, "*")),
+                UidPolicy.parse(preferences.getString(KEY_RECORDER_POLICY, "*")),
+                sdk > 0 ? sdk : Build.VERSION.SDK_INT,
+                preferences.getBoolean(KEY_STATS, false), preferences.getBoolean(KEY_TRACE, false),
+                preferences.getBoolean(KEY_CAPTURE_ON_BUILD, false), watchdog, budgets, maxSessions,
+                preferences.getBoolean(KEY_SECURE_INDEX, false), preferences.getBoolean(KEY_DEOPT_STATS, false),
+                prune, pruneKeep);
+    }
+
+    /**
+     * Boolean, Integer or String for a key read by {@link #compile}, null for an unknown one.
+     */
+    static Class<?> type(String key) {
+        if (key.startsWith(KEY_HOOK) || key.startsWith(KEY_PACKAGE)) return Boolean.class;
+        if (key.startsWith(KEY_BUDGET)) return Integer.class;
+        switch (key) {
+            case KEY_SDK:
+            case KEY_MAX_SESSIONS:
+                return Integer.class;
+            case KEY_STATS:
+            case KEY_TRACE:
+            case KEY_CAPTURE_ON_BUILD:
+            case KEY_SECURE_INDEX:
+            case KEY_DEOPT_STATS:
+                return Boolean.class;
+            case KEY_UID_POLICY:
+            case KEY_RECORDER_POLICY:
+            case KEY_WATCHDOG:
+            case KEY_PRUNE:
+            case KEY_PRUNE_KEEP:
+                return String.class;
+            default:
+                return null;
+        }
+    }
+
+    // Read when the hooks are installed
+    static boolean takesReboot(String key) {
+        switch (key) {
+            case KEY_SDK:
+            case KEY_CAPTURE_ON_BUILD:
+            case KEY_SECURE_INDEX:
+            case KEY_DEOPT_STATS:
+            case KEY_PRUNE:
+            case KEY_PRUNE_KEEP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static int hook(String name) {
+        for (int i = 0; i < HOOKS.length; i++) {
+            if (HOOKS[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    boolean enabled(int hook) {
+        return (disabledHooks & (1 << hook)) == 0;
+    }
+
+    boolean keeps(int hook) {
+        return (pruneKeep & (1 << hook)) != 0;
+    }
+
+    long budgetNanos(int hook) {
+        return budgets[hook] * 1000L;
+    }
+
+    boolean handles(String packageName) {
+        return !disabledPackages.contains(packageName);
+    }
+
+    /**
+     * {@link #handles} straight from the preferences, for a process that needs nothing else of the config.
+     */
+    static boolean handles(SharedPreferences preferences, String packageName) {
+        return preferences.getBoolean(KEY_PACKAGE + packageName, true);
+    }
+
+    Config withHook(int hook, boolean enabled) {
+        var hooks = enabled ? disabledHooks & ~(1 << hook) : disabledHooks | 1 << hook;
+        return new Config(hooks, disabledPackages, uidPolicy, recorderPolicy, sdk, stats, trace, captureOnBuild,
+                watchdog, budgets, maxSessions, secureIndex, deoptStats, prune, pruneKeep);
+    }
+
+    Config withUidPolicy(UidPolicy uidPolicy) {
+        return new Config(disabledHooks, disabledPackages, uidPolicy, recorderPolicy, sdk, stats, trace, captureOnBuild,
+                watchdog, budgets, maxSessions, secureIndex, deoptStats, prune, pruneKeep);
+    }
+
+    Config withRecorderPolicy(UidPolicy recorderPolicy) {
+        return new Config(disabledHooks, disabledPackages, uidPolicy, recorderPolicy, sdk, stats, trace, captureOnBuild,
+                watchdog, budgets, maxSessions, secureIndex, deoptStats, prune, pruneKeep);
+    }
+
+    Config withStats(boolean stats) {
+        return new Config(disabledHooks, disabledPackages, uidPolicy, recorderPolicy, sdk, stats, trace, captureOnBuild,
+                watchdog, budgets, maxSessions, secureIndex, deoptStats, prune, pruneKeep);
+    }
+
+    Config withTrace(boolean trace) {
+        return new Config(disabledHooks, disabledPackages, uidPolicy, recorderPolicy, sdk, stats, trace, captureOnBuild,
+                watchdog, budgets, maxSessions, secureIndex, deoptStats, prune, pruneKeep);
+    }
+
+    Config withWatchdog(int watchdog) {
+        return new Config(disabledHooks, disabledPackages, uidPolicy, recorderPolicy, sdk, stats, trace, captureOnBuild,
+                watchdog, budgets, maxSessions, secureIndex, deoptStats, prune, pruneKeep);
+    }
+
+    @Override
+    public String toString() {
+        var sb = new StringBuilder("sdk ").append(sdk).append(", secure bypass for ").append(uidPolicy)
+                .append(", secure virtual displays for ").append(recorderPolicy);
+        if (captureOnBuild) sb.append(", capture on build");
+        if (secureIndex) sb.append(", secure window index");
+        if (deoptStats) sb.append(", deoptimization stats");
+        if (prune != PRUNE_OFF) sb.append(", prune ").append(PRUNE_MODES[prune]);
+        sb.append(", watchdog ").append(WATCHDOG_MODES[watchdog]);
+        for (int i = 0; i < HOOKS.length; i++) {
+            if (!enabled(i)) sb.append(", ").append(HOOKS[i]).append(" off");
+        }
+        for (var packageName : disabledPackages) {
+            sb.append(", ").append(packageName).append(" off");
+        }
+        return sb.toString();
+    }
+}
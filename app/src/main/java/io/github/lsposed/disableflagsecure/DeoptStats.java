@@ -0,0 +1,160 @@
+package io.github.lsposed.disableflagsecure;
+
+import java.io.PrintWriter;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Member;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * What the methods deoptimizeSystemServer forces into the interpreter cost, with deopt_stats on.
+ * Entry/exit hooks count every call and time one in {@link #SAMPLE_INTERVAL}; slots are striped
+ * by thread like {@link HookStats} and never allocate. Times include the two hooks themselves.
+ * The services.jar scan that finds the methods is reported whether or not deopt_stats is on.
+ */
+final class DeoptStats {
+    static final int SAMPLE_INTERVAL = 16;
+    private static final int MAX_METHODS = 64;
+
+    // Per method: calls, timed calls, nanoseconds of the timed calls
+    private static final int CALLS = 0;
+    private static final int SAMPLES = 1;
+    private static final int NANOS = 2;
+    private static final int FIELDS = 3;
+
+    private static final int SLOTS = MAX_METHODS * FIELDS;
+    private static final int STRIDE = ((SLOTS + 7) & ~7) + 8;
+    private static final int STRIPES = 8;
+
+    private static final AtomicLongArray slots = new AtomicLongArray(STRIDE * STRIPES);
+    private static volatile Executable[] methods = new Executable[0];
+    // Entry time of the timed call in progress per method, 0 if none
+    private static final ThreadLocal<long[]> starts = ThreadLocal.withInitial(() -> new long[MAX_METHODS]);
+    // Racy on purpose, only spreads samples
+    private static int tick;
+
+    // services.jar scan of this boot, -1 before it ran
+    private static volatile long scanNanos = -1;
+    private static int scanCallers;
+    private static boolean scanCached;
+
+    private DeoptStats() {
+    }
+
+    /**
+     * @return false if every slot is taken, the method is then not hooked
+     */
+    static synchronized boolean register(Executable method) {
+        var current = methods;
+        if (current.length >= MAX_METHODS) return false;
+        for (var m : current) {
+            if (m.equals(method)) return false;
+        }
+        var next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = method;
+        methods = next;
+        return true;
+    }
+
+    /**
+     * @param cached callers read from the hook cache, nothing was scanned
+     */
+    static void scanned(long nanos, int callers, boolean cached) {
+        scanCallers = callers;
+        scanCached = cached;
+        scanNanos = nanos;
+    }
+
+    static void enter(Member member) {
+        var slot = slot(member);
+        if (slot < 0) return;
+        slots.getAndIncrement(stripe() + slot * FIELDS + CALLS);
+        if ((++tick & (SAMPLE_INTERVAL - 1)) == 0) starts.get()[slot] = System.nanoTime();
+    }
+
+    static void exit(Member member) {
+        var slot = slot(member);
+        if (slot < 0) return;
+        var pending = starts.get();
+        var start = pending[slot];
+        if (start == 0) return;
+        pending[slot] = 0;
+        var base = stripe() + slot * FIELDS;
+        slots.getAndIncrement(base + SAMPLES);
+        slots.getAndAdd(base + NANOS, System.nanoTime() - start);
+    }
+
+    static void reset() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, 0);
+        }
+    }
+
+    static void dump(PrintWriter pw) {
+        var nanos = scanNanos;
+        if (nanos >= 0) {
+            pw.println("services.jar scan: " + scanCallers + " callers" +
+                    (scanCached ? " from the hook cache" : " in " + nanos / 1_000_000 + "ms"));
+        }
+        var current = methods;
+        if (current.length == 0) return;
+        // Estimated total per method: mean of the timed calls times all calls
+        var totals = new long[current.length];
+        var byClass = new LinkedHashMap<Class<?>, List<Integer>>();
+        for (int i = 0; i < current.length; i++) {
+            var samples = sum(i * FIELDS + SAMPLES);
+            totals[i] = samples == 0 ? 0 : sum(i * FIELDS + NANOS) / samples * sum(i * FIELDS + CALLS);
+            byClass.computeIfAbsent(current[i].getDeclaringClass(), c -> new ArrayList<>()).add(i);
+        }
+        var classes = new ArrayList<>(byClass.keySet());
+        classes.sort(Comparator.comparingLong((Class<?> c) -> total(byClass.get(c), totals)).reversed());
+        pw.println("Deoptimized methods (" + current.length + " accounted, timed 1/" + SAMPLE_INTERVAL +
+                ", estimated time including the accounting hooks)");
+        for (var clazz : classes) {
+            var indices = byClass.get(clazz);
+            indices.sort(Comparator.comparingLong((Integer i) -> totals[i]).reversed());
+            pw.println("  " + clazz.getName() + ": " + total(indices, totals) / 1000 + "us");
+            for (var i : indices) {
+                var calls = sum(i * FIELDS + CALLS);
+                var name = current[i] instanceof Constructor ? "<init>" : current[i].getName();
+                pw.println("    " + name + ": " + calls + " calls, " +
+                        (calls == 0 ? 0 : totals[i] / calls) + "ns each, " + totals[i] / 1000 + "us");
+            }
+        }
+    }
+
+    private static int slot(Member member) {
+        var current = methods;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == member) return i;
+        }
+        // The framework may hand out a copy of the hooked member
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].equals(member)) return i;
+        }
+        return -1;
+    }
+
+    private static long total(List<Integer> indices, long[] totals) {
+        long total = 0;
+        for (var i : indices) total += totals[i];
+        return total;
+    }
+
+    private static int stripe() {
+        return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIDE;
+    }
+
+    private static long sum(int slot) {
+        long sum = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            sum += slots.get(stripe * STRIDE + slot);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,79 @@
+package io.github.lsposed.disableflagsecure;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+
+import java.lang.reflect.Method;
+
+/**
+ * ROM family of the device, detected once from build properties so vendor hooks that cannot
+ * apply are skipped without loading their classes.
+ */
+enum DeviceProfile {
+    AOSP(""),
+    HYPEROS("xiaomi"),
+    ONEUI("samsung"),
+    OPLUS("oplus"),
+    FLYME("flyme");
+
+    // Matches HookTarget#vendor
+    final String vendor;
+
+    DeviceProfile(String vendor) {
+        this.vendor = vendor;
+    }
+
+    boolean accepts(String vendor) {
+        return vendor.isEmpty() || vendor.equals(this.vendor);
+    }
+
+    // Published like Config#current; racing threads detect the same profile
+    private static volatile DeviceProfile current;
+
+    static DeviceProfile get() {
+        var profile = current;
+        if (profile == null) {
+            profile = detect();
+            current = profile;
+        }
+        return profile;
+    }
+
+    private static DeviceProfile detect() {
+        if (!prop("ro.mi.os.version.name").isEmpty() || !prop("ro.miui.ui.version.name").isEmpty()) {
+            return HYPEROS;
+        }
+        if (!prop("ro.build.version.oneui").isEmpty()) {
+            return ONEUI;
+        }
+        if (!prop("ro.build.version.oplusrom").isEmpty()) {
+            return OPLUS;
+        }
+        if (!prop("ro.build.flyme.version").isEmpty() || Build.DISPLAY.contains("Flyme")) {
+            return FLYME;
+        }
+        // Properties may be missing on ports, fall back to the manufacturer
+        return switch (Build.MANUFACTURER.toLowerCase()) {
+            case "xiaomi" -> HYPEROS;
+            case "samsung" -> ONEUI;
+            case "oppo", "oneplus", "realme" -> OPLUS;
+            case "meizu" -> FLYME;
+            default -> AOSP;
+        };
+    }
+
+    private static Method getProp;
+
+    @SuppressLint("PrivateApi")
+    private static String prop(String key) {
+        try {
+            if (getProp == null) {
+                getProp = Class.forName("android.os.SystemProperties").getDeclaredMethod("get", String.class);
+            }
+            var value = (String) getProp.invoke(null, key);
+            return value == null ? "" : value;
+        } catch (ReflectiveOperationException e) {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package io.github.lsposed.disableflagsecure;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Finds the methods that invoke any of the given methods in dex bytecode, plus the callers of small
+ * wrappers around it, since ART may inline those wrappers and bypass the hook. Wrappers are
+ * followed transitively: ART inlines the callee's own inlined calls as well, so a small caller of
+ * a wrapper is a wrapper too. Each level is one more pass over the dex files, inflated one at a
+ * time so a multidex services.jar never sits in memory whole.
+ * <p>
+ * Plain Java on purpose, so it runs on the JVM against sample dex files.
+ */
+final class DexScanner {
+    // ART inliner limit, dex2oat --inline-max-code-units, which the platform build leaves at its default
+    static final int DEFAULT_INLINE_LIMIT = 32;
+
+    private static final Pattern DEX_ENTRY = Pattern.compile("classes\\d*\\.dex");
+
+    private static final byte[] WIDTH = new byte[256];
+
+    static {
+        Arrays.fill(WIDTH, (byte) 1);
+        fill(0x02, 0x02, 2);
+        fill(0x03, 0x03, 3);
+        fill(0x05, 0x05, 2);
+        fill(0x06, 0x06, 3);
+        fill(0x08, 0x08, 2);
+        fill(0x09, 0x09, 3);
+        fill(0x13, 0x13, 2);
+        fill(0x14, 0x14, 3);
+        fill(0x15, 0x16, 2);
+        fill(0x17, 0x17, 3);
+        fill(0x18, 0x18, 5);
+        fill(0x19, 0x1a, 2);
+        fill(0x1b, 0x1b, 3);
+        fill(0x1c, 0x1c, 2);
+        fill(0x1f, 0x20, 2);
+        fill(0x22, 0x23, 2);
+        fill(0x24, 0x26, 3);
+        fill(0x29, 0x29, 2);
+        fill(0x2a, 0x2c, 3);
+        fill(0x2d, 0x3d, 2);
+        fill(0x44, 0x6d, 2);
+        fill(0x6e, 0x72, 3);
+        fill(0x74, 0x78, 3);
+        fill(0x90, 0xaf, 2);
+        fill(0xd0, 0xe2, 2);
+        fill(0xfa, 0xfb, 4);
+        fill(0xfc, 0xfd, 3);
+        fill(0xfe, 0xff, 2);
+    }
+
+    private static void fill(int from, int to, int width) {
+        Arrays.fill(WIDTH, from, to + 1, (byte) width);
+    }
+
+    private static boolean isInvoke(int op) {
+        return (op >= 0x6e && op <= 0x78 && op != 0x73) || op == 0xfa || op == 0xfb;
+    }
+
+    static final class MethodRef {
+        // Binary class name, e.g. com.android.server.wm.DisplayContent$1
+        final String className;
+        final String name;
+        // Parameter type descriptors
+        final String[] parameterTypes;
+        final int codeUnits;
+
+        MethodRef(String className, String name, String[] parameterTypes, int codeUnits) {
+            this.className = className;
+            this.name = name;
+            this.parameterTypes = parameterTypes;
+            this.codeUnits = codeUnits;
+        }
+
+        boolean matches(Executable executable) {
+            var executableName = executable instanceof Constructor ? "<init>" : executable.getName();
+            if (!name.equals(executableName)) return false;
+            var types = executable.getParameterTypes();
+            if (types.length != parameterTypes.length) return false;
+            for (int i = 0; i < types.length; i++) {
+                if (!parameterTypes[i].equals(descriptor(types[i]))) return false;
+            }
+            return true;
+        }
+
+        String key() {
+            return keyOf(descriptorOf(className), name, parameterTypes);
+        }
+
+        @Override
+        public String toString() {
+            return className + "#" + name + "(" + String.join("", parameterTypes) + ")";
+        }
+
+        /**
+         * Inverse of {@link #toString()}.
+         */
+        static MethodRef parse(String ref) {
+            int hash = ref.indexOf('#');
+            int open = ref.indexOf('(', hash);
+            return new MethodRef(ref.substring(0, hash), ref.substring(hash + 1, open),
+                    HookCache.parameterTypes(ref.substring(open + 1, ref.length() - 1)), 0);
+        }
+    }
+
+    private final String[] targets;
+    private final int inlineLimit;
+
+    /**
+     * @param inlineLimit wrappers up to this many code units also get their callers reported
+     * @param targets     binary class name and method name, e.g. com.android.server.wm.WindowState#isSecureLocked,
+     *                    all overloads match
+     */
+    DexScanner(int inlineLimit, String... targets) {
+        this.targets = targets;
+        this.inlineLimit = inlineLimit;
+    }
+
+    List<MethodRef> scanJar(String path) throws IOException {
+        try (var zip = new ZipFile(path)) {
+            var entries = new ArrayList<ZipEntry>();
+            var it = zip.entries();
+            while (it.hasMoreElements()) {
+                var entry = it.nextElement();
+                if (DEX_ENTRY.matcher(entry.getName()).matches()) entries.add(entry);
+            }
+            return scan(pass -> {
+                for (var entry : entries) {
+                    // Unreachable again once the pass is done with it
+                    try (var in = zip.getInputStream(entry)) {
+                        pass.accept(new Dex(ByteBuffer.wrap(in.readAllBytes())));
+                    }
+                }
+            });
+        }
+    }
+
+    private interface DexFiles {
+        void forEach(Consumer<Dex> pass) throws IOException;
+    }
+
+    private List<MethodRef> scan(DexFiles dexFiles) throws IOException {
+        var found = new LinkedHashMap<String, MethodRef>();
+        Map<String, Set<String>> targets = new HashMap<>();
+        for (var target : this.targets) {
+            var hash = target.indexOf('#');
+            var name = target.substring(hash + 1);
+            targets.computeIfAbsent(name, k -> new HashSet<>()).add(anyOverload(descriptorOf(target.substring(0, hash)), name));
+        }
+        while (!targets.isEmpty()) {
+            var callers = new ArrayList<MethodRef>();
+            var current = targets;
+            dexFiles.forEach(dex -> dex.findCallers(current, callers));
+
+            // Callers of small wrappers, which may get the target inlined through the wrapper
+            targets = new HashMap<>();
+            for (var ref : callers) {
+                if (found.putIfAbsent(ref.key(), ref) == null && ref.codeUnits <= inlineLimit) {
+                    targets.computeIfAbsent(ref.name, k -> new HashSet<>()).add(ref.key());
+                }
+            }
+        }
+        return new ArrayList<>(found.values());
+    }
+
+    private final class Dex {
+        private final ByteBuffer buf;
+        private final int stringIdsSize;
+        private final int stringIdsOff;
+        private final int typeIdsOff;
+        private final int protoIdsOff;
+        private final int methodIdsSize;
+        private final int methodIdsOff;
+        private final int classDefsSize;
+        private final int classDefsOff;
+        private int pos;
+
+        Dex(ByteBuffer buf) {
+            this.buf = buf.order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.get(0) != 'd' || buf.get(1) != 'e' || buf.get(2) != 'x' || buf.get(3) != '\n') {
+                throw new IllegalArgumentException("not a dex file");
+            }
+            stringIdsSize = buf.getInt(0x38);
+            stringIdsOff = buf.getInt(0x3c);
+            typeIdsOff = buf.getInt(0x44);
+            protoIdsOff = buf.getInt(0x4c);
+            methodIdsSize = buf.getInt(0x58);
+            methodIdsOff = buf.getInt(0x5c);
+            classDefsSize = buf.getInt(0x60);
+            classDefsOff = buf.getInt(0x64);
+        }
+
+        /**
+         * @param targets method name to keys, see {@link #anyOverload} for a key matching every overload
+         */
+        void findCallers(Map<String, Set<String>> targets, List<MethodRef> out) {
+            // Names resolved once, method_ids are then matched on ints
+            var names = new int[targets.size()];
+            var keys = new ArrayList<Set<String>>(targets.size());
+            for (var target : targets.entrySet()) {
+                var name = stringId(target.getKey());
+                if (name < 0) continue;
+                names[keys.size()] = name;
+                keys.add(target.getValue());
+            }
+            if (keys.isEmpty()) return;
+
+            var isTarget = new boolean[methodIdsSize];
+            boolean any = false;
+            for (int i = 0; i < methodIdsSize; i++) {
+                int name = buf.getInt(methodIdsOff + i * 8 + 4);
+                int k = 0;
+                while (k < keys.size() && names[k] != name) k++;
+                if (k == keys.size()) continue;
+                var overloads = keys.get(k);
+                var clazz = type(methodClass(i));
+                var methodName = methodName(i);
+                if (overloads.contains(anyOverload(clazz, methodName)) ||
+                        overloads.contains(keyOf(clazz, methodName, parameters(i)))) {
+                    isTarget[i] = true;
+                    any = true;
+                }
+            }
+            if (!any) return;
+
+            for (int c = 0; c < classDefsSize; c++) {
+                int classDataOff = buf.getInt(classDefsOff + c * 32 + 24);
+                if (classDataOff == 0) continue;
+                pos = classDataOff;
+                int staticFields = uleb();
+                int instanceFields = uleb();
+                int directMethods = uleb();
+                int virtualMethods = uleb();
+                for (int i = 0; i < (staticFields + instanceFields) * 2; i++) uleb();
+                scanMethods(directMethods, isTarget, out);
+                scanMethods(virtualMethods, isTarget, out);
+            }
+        }
+
+        private void scanMethods(int count, boolean[] isTarget, List<MethodRef> out) {
+            int method = 0;
+            for (int i = 0; i < count; i++) {
+                method += uleb();
+                uleb(); // access_flags
+                int codeOff = uleb();
+                if (codeOff == 0 || isTarget[method]) continue;
+                int codeUnits = buf.getInt(codeOff + 12);
+                if (invokesAny(codeOff + 16, codeUnits, isTarget)) {
+                    var clazz = type(methodClass(method));
+                    out.add(new MethodRef(binaryName(clazz), methodName(method), parameters(method), codeUnits));
+                }
+            }
+        }
+
+        private boolean invokesAny(int insns, int size, boolean[] isTarget) {
+            int pc = 0;
+            while (pc < size) {
+                int unit = buf.getShort(insns + pc * 2) & 0xffff;
+                int op = unit & 0xff;
+                if (isInvoke(op)) {
+                    int ref = buf.getShort(insns + pc * 2 + 2) & 0xffff;
+                    if (ref < isTarget.length && isTarget[ref]) return true;
+                }
+                if (unit == 0x0100) {
+                    // packed-switch-payload
+                    pc += 4 + (buf.getShort(insns + pc * 2 + 2) & 0xffff) * 2;
+                } else if (unit == 0x0200) {
+                    // sparse-switch-payload
+                    pc += 2 + (buf.getShort(insns + pc * 2 + 2) & 0xffff) * 4;
+                } else if (unit == 0x0300) {
+                    // fill-array-data-payload
+                    int width = buf.getShort(insns + pc * 2 + 2) & 0xffff;
+                    int elements = buf.getInt(insns + pc * 2 + 4);
+                    pc += 4 + (int) (((long) elements * width + 1) / 2);
+                } else {
+                    pc += WIDTH[op];
+                }
+            }
+            return false;
+        }
+
+        private int methodClass(int method) {
+            return buf.getShort(methodIdsOff + method * 8) & 0xffff;
+        }
+
+        private String methodName(int method) {
+            return string(buf.getInt(methodIdsOff + method * 8 + 4));
+        }
+
+        private String[] parameters(int method) {
+            int proto = buf.getShort(methodIdsOff + method * 8 + 2) & 0xffff;
+            int parametersOff = buf.getInt(protoIdsOff + proto * 12 + 8);
+            if (parametersOff == 0) return new String[0];
+            var types = new String[buf.getInt(parametersOff)];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = type(buf.getShort(parametersOff + 4 + i * 2) & 0xffff);
+            }
+            return types;
+        }
+
+        /**
+         * string_ids are sorted by content, -1 if the dex has no such string.
+         */
+        private int stringId(String value) {
+            int low = 0;
+            int high = stringIdsSize - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int c = string(mid).compareTo(value);
+                if (c == 0) return mid;
+                if (c < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return -1;
+        }
+
+        private String type(int type) {
+            return string(buf.getInt(typeIdsOff + type * 4));
+        }
+
+        private String string(int string) {
+            // Own cursor, pos belongs to the class_data walk
+            int p = buf.getInt(stringIdsOff + string * 4);
+            while ((buf.get(p++) & 0x80) != 0) ; // utf16_size
+            var chars = new StringBuilder();
+            int a;
+            while ((a = buf.get(p++) & 0xff) != 0) {
+                if (a < 0x80) {
+                    chars.append((char) a);
+                } else if ((a & 0xe0) == 0xc0) {
+                    chars.append((char) (((a & 0x1f) << 6) | (buf.get(p++) & 0x3f)));
+                } else {
+                    int b = buf.get(p++) & 0x3f;
+                    chars.append((char) (((a & 0x0f) << 12) | (b << 6) | (buf.get(p++) & 0x3f)));
+                }
+            }
+            return chars.toString();
+        }
+
+        private int uleb() {
+            int result = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = buf.get(pos++) & 0xff;
+                result |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return result;
+        }
+    }
+
+    private static String anyOverload(String classDescriptor, String name) {
+        return classDescriptor + "->" + name;
+    }
+
+    private static String keyOf(String classDescriptor, String name, String[] parameterTypes) {
+        return classDescriptor + "->" + name + "(" + String.join("", parameterTypes) + ")";
+    }
+
+    static String descriptorOf(String binaryName) {
+        return "L" + binaryName.replace('.', '/') + ";";
+    }
+
+    static String binaryName(String descriptor) {
+        return descriptor.substring(1, descriptor.length() - 1).replace('/', '.');
+    }
+
+    static String descriptor(Class<?> clazz) {
+        if (clazz.isArray()) return clazz.getName().replace('.', '/');
+        if (!clazz.isPrimitive()) return descriptorOf(clazz.getName());
+        if (clazz == int.class) return "I";
+        if (clazz == boolean.class) return "Z";
+        if (clazz == long.class) return "J";
+        if (clazz == float.class) return "F";
+        if (clazz == double.class) return "D";
+        if (clazz == byte.class) return "B";
+        if (clazz == char.class) return "C";
+        if (clazz == short.class) return "S";
+        return "V";
+    }
+}
@@ -0,0 +1,206 @@
+package io.github.lsposed.disableflagsecure;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ * The module log. Every message has a static ID with a counter and a token bucket; a message
+ * repeated before it is written (same ID, detail and throwable class) folds into one entry with
+ * a count. Entries wait in a preallocated buffer: messages from hookers are written by a flusher
+ * thread that exits once idle, the rest right away by the caller. Boot and install messages are
+ * bounded by the hooks installed and never rate limited; what was suppressed of the others is
+ * summed up by {@link #flushSuppressed()} at the end of boot.
+ */
+final class DiagnosticLog {
+    static final int INFO = 0;
+    static final int TASK_FAILED = 1;
+    static final int SAVE_CACHE_FAILED = 2;
+    static final int LOAD_CONFIG_FAILED = 3;
+    static final int INVALID_CONFIG = 4;
+    static final int NO_CALLER_FOUND = 5;
+    static final int SCAN_FAILED = 6;
+    static final int UNKNOWN_LAYOUT = 7;
+    static final int SCREEN_CAPTURE_FAILED = 8;
+    static final int FLAG_NOT_FOUND = 9;
+    static final int WATCHDOG_TRIPPED = 10;
+    static final int UNHOOK_FAILED = 11;
+    // %s is the detail
+    private static final String[] MESSAGES = {
+            "%s", "%s failed", "save hook cache failed", "load config failed, using defaults",
+            "invalid config, keeping %s", "no caller of %s found in services.jar",
+            "scan services.jar failed", "unknown argument layout, not hooking %s",
+            "ScreenCaptureHooker failed", "flag not found in CreateVirtualDisplayLockedHooker",
+            "%s", "unhook %s failed"};
+    // Logged from hookers, written by the flusher
+    private static final int HOT = 1 << SCREEN_CAPTURE_FAILED | 1 << FLAG_NOT_FOUND | 1 << WATCHDOG_TRIPPED;
+    // Once per boot, install task or hooked method, always written
+    private static final int BOOT = 1 << INFO | 1 << TASK_FAILED | 1 << SAVE_CACHE_FAILED | 1 << LOAD_CONFIG_FAILED |
+            1 << NO_CALLER_FOUND | 1 << SCAN_FAILED | 1 << UNKNOWN_LAYOUT;
+
+    private static final int BURST = 8;
+    private static final long REFILL_NANOS = 10_000_000_000L;
+    private static final long FLUSH_DELAY_MILLIS = 1000;
+    private static final int CAPACITY = 32;
+
+    private static final Object lock = new Object();
+    private static final long[] counts = new long[MESSAGES.length];
+    private static final long[] suppressed = new long[MESSAGES.length];
+    private static final int[] tokens = new int[MESSAGES.length];
+    private static final long[] refilled = new long[MESSAGES.length];
+
+    private static final int[] ids = new int[CAPACITY];
+    private static final Object[] details = new Object[CAPACITY];
+    private static final Throwable[] throwables = new Throwable[CAPACITY];
+    private static final int[] repeats = new int[CAPACITY];
+    private static int pending;
+    private static Thread flusher;
+
+    private static BiConsumer<String, Throwable> sink = (message, throwable) -> {
+    };
+
+    static {
+        Arrays.fill(tokens, BURST);
+    }
+
+    private DiagnosticLog() {
+    }
+
+    static void setSink(BiConsumer<String, Throwable> sink) {
+        DiagnosticLog.sink = sink;
+    }
+
+    static void log(int id) {
+        log(id, null, null);
+    }
+
+    static void log(int id, Throwable throwable) {
+        log(id, null, throwable);
+    }
+
+    static void log(int id, Object detail) {
+        log(id, detail, null);
+    }
+
+    static void log(int id, Object detail, Throwable throwable) {
+        var hot = (HOT & (1 << id)) != 0;
+        synchronized (lock) {
+            counts[id]++;
+            if (fold(id, detail, throwable)) return;
+            if (((BOOT & (1 << id)) == 0 && !take(id)) || pending == CAPACITY) {
+                suppressed[id]++;
+                return;
+            }
+            ids[pending] = id;
+            details[pending] = detail;
+            throwables[pending] = throwable;
+            repeats[pending] = 1;
+            pending++;
+            if (hot && flusher == null) {
+                // One per burst, the hooker only pays for this when the log was idle
+                flusher = new Thread(DiagnosticLog::drain, "DisableFlagSecure-log");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+        }
+        if (!hot) flush();
+    }
+
+    static void flush() {
+        var messages = new ArrayList<String>();
+        var causes = new ArrayList<Throwable>();
+        synchronized (lock) {
+            for (int i = 0; i < pending; i++) {
+                var id = ids[i];
+                var message = MESSAGES[id].replace("%s", String.valueOf(details[i]));
+                if (repeats[i] > 1) message += " (" + repeats[i] + " times)";
+                if (suppressed[id] > 0) {
+                    message += ", " + suppressed[id] + " more suppressed";
+                    suppressed[id] = 0;
+                }
+                messages.add(message);
+                causes.add(throwables[i]);
+                details[i] = null;
+                throwables[i] = null;
+            }
+            pending = 0;
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            sink.accept(messages.get(i), causes.get(i));
+        }
+    }
+
+    /**
+     * Writes what is pending and a count for every message suppressed since it was last written,
+     * which may otherwise never show if the message does not come again.
+     */
+    static void flushSuppressed() {
+        flush();
+        var notes = new ArrayList<String>();
+        synchronized (lock) {
+            for (int id = 0; id < MESSAGES.length; id++) {
+                if (suppressed[id] == 0) continue;
+                notes.add(MESSAGES[id].replace("%s", "...") + ": " + suppressed[id] + " more suppressed");
+                suppressed[id] = 0;
+            }
+        }
+        for (var note : notes) {
+            sink.accept(note, null);
+        }
+    }
+
+    static void dump(PrintWriter pw) {
+        pw.println("Log (burst " + BURST + ", one more every " + REFILL_NANOS / 1_000_000_000 + "s per message)");
+        synchronized (lock) {
+            for (int id = 0; id < MESSAGES.length; id++) {
+                if (counts[id] == 0) continue;
+                pw.println("  #" + id + " " + MESSAGES[id].replace("%s", "...") + ": " + counts[id] + " logged" +
+                        (suppressed[id] > 0 ? ", " + suppressed[id] + " suppressed since last written" : ""));
+            }
+        }
+    }
+
+    // Same message still waiting in the buffer
+    private static boolean fold(int id, Object detail, Throwable throwable) {
+        for (int i = 0; i < pending; i++) {
+            if (ids[i] != id || !Objects.equals(details[i], detail)) continue;
+            var other = throwables[i];
+            if (other == null ? throwable != null : throwable == null || other.getClass() != throwable.getClass()) {
+                continue;
+            }
+            repeats[i]++;
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean take(int id) {
+        var now = System.nanoTime();
+        var refill = (now - refilled[id]) / REFILL_NANOS;
+        if (refill > 0) {
+            tokens[id] = (int) Math.min(BURST, tokens[id] + refill);
+            refilled[id] = now;
+        }
+        if (tokens[id] == 0) return false;
+        tokens[id]--;
+        return true;
+    }
+
+    private static void drain() {
+        while (true) {
+            try {
+                Thread.sleep(FLUSH_DELAY_MILLIS);
+            } catch (InterruptedException ignored) {
+            }
+            flush();
+            synchronized (lock) {
+                if (pending == 0) {
+                    flusher = null;
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -3,192 +3,227 @@ package io.github.lsposed.disableflagsecure;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.SharedPreferences;
 import android.hardware.display.DisplayManager;
+import android.os.Binder;
 import android.os.Build;
+import android.os.Environment;
+import android.os.IInterface;
+import android.os.Process;
+import android.os.SystemClock;
 import android.view.SurfaceControl;
+import android.view.WindowManager;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.RequiresApi;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiConsumer;
 import java.util.function.BiPredicate;
 
 import io.github.libxposed.api.XposedInterface;
 import io.github.libxposed.api.XposedModule;
+import io.github.libxposed.api.annotations.AfterInvocation;
 import io.github.libxposed.api.annotations.BeforeInvocation;
+import io.github.libxposed.api.annotations.HookTarget;
 import io.github.libxposed.api.annotations.XposedHooker;
 
 @SuppressLint({"PrivateApi", "BlockedPrivateApi"})
 public class DisableFlagSecure extends XposedModule {
-    private static final String SYSTEMUI = "com.android.systemui";
-    private static final String OPLUS_APPPLATFORM = "com.oplus.appplatform";
-    private static final String OPLUS_SCREENSHOT = "com.oplus.screenshot";
-    private static final String FLYME_SYSTEMUIEX = "com.flyme.systemuiex";
-    private static final String MIUI_SCREENSHOT = "com.miui.screenshot";
+    static final String SYSTEMUI = "com.android.systemui";
+    static final String OPLUS_APPPLATFORM = "com.oplus.appplatform";
+    static final String OPLUS_SCREENSHOT = "com.oplus.screenshot";
+    static final String FLYME_SYSTEMUIEX = "com.flyme.systemuiex";
+    static final String MIUI_SCREENSHOT = "com.miui.screenshot";
+    private static final String DUMP_COMMAND = "disableflagsecure";
+    private static final String TRACE_FILE = "/data/misc/perfetto-traces/disableflagsecure.perfetto-trace";
+    // Process name of system_server in @HookTarget
+    private static final String SYSTEM = "system";
+    // Kept out of their callers' compiled code, see deoptimizeSystemServer
+    private static final String[] SECURE_LOCKED = {"com.android.server.wm.WindowState#isSecureLocked"};
+    private static final String[] SURFACE_CALL_SITES = {
+            "com.android.server.wm.WindowStateAnimator#createSurfaceLocked",
+            "com.android.server.wm.WindowState#setInitialSurfaceControlProperties"};
 
     private static XposedModule module;
 
+    private final MemberIndex members = new MemberIndex();
+    // Hooks left out by the device profile
+    private final List<String> skipped = Collections.synchronizedList(new ArrayList<>());
+    private HookCache cache = new HookCache(null, Build.FINGERPRINT);
+    // Held here, the preferences only keep a weak reference
+    private SharedPreferences.OnSharedPreferenceChangeListener configListener;
+    // system_server only
+    private LocalSettings settings;
+
     public DisableFlagSecure(XposedInterface base, ModuleLoadedParam param) {
         super(base, param);
         module = this;
+        TraceBuffer.setTidSource(Process::myTid);
+        DiagnosticLog.setSink((message, t) -> {
+            if (t == null) log(message);
+            else log(message, t);
+        });
     }
 
     @Override
     public void onSystemServerLoaded(@NonNull SystemServerLoadedParam param) {
         var classLoader = param.getClassLoader();
+        var data = new File(Environment.getDataDirectory(), "system");
+        settings = new LocalSettings(new File(data, "disableflagsecure.prefs"));
+        loadConfig();
+        cache = new HookCache(new File(data, "disableflagsecure.cache"), Build.FINGERPRINT);
+        // Only system_server keeps a cache across boots to learn in
+        HookUsage.start(cache, Config.current().prune);
 
-        try {
-            deoptimizeSystemServer(classLoader);
-        } catch (Throwable t) {
-            log("deoptimize system server failed", t);
+        var scheduler = new HookScheduler(HookScheduler.defaultWorkers(), (name, t) -> DiagnosticLog.log(DiagnosticLog.TASK_FAILED, name, t));
+
+        if (Config.current().secureIndex) {
+            // FLAG_SECURE decided per window, isSecureLocked stays untouched
+            scheduler.critical("index secure windows", () -> indexSecureWindows(classLoader));
         }
+        // Needed before the first window is created
+        scheduler.critical("deoptimize system server", () -> deoptimizeSystemServer(classLoader, scheduler));
+        // Call site markers for SecureLockedHooker / CreateDisplayHooker
+        scheduler.critical("hook call sites", () -> hookCallSites(classLoader));
+        // ScreenCapture in WindowManagerService (S~Baklava)
+        scheduler.critical("hook ScreenCapture", () -> hookScreenCapture(classLoader));
+        // Window owner for UidPolicy
+        scheduler.critical("resolve window owner", () -> resolveWindowOwner(classLoader));
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.VANILLA_ICE_CREAM) {
-            // Screen record detection (V~Baklava)
+        // Everything declared with @HookTarget, only the bookkeeping off the boot path
+        installHooks(classLoader, HookPlan.table(SYSTEM), scheduler);
+
+        scheduler.whenReady(() -> {
+            members.clear();
+            DiagnosticLog.log(DiagnosticLog.INFO, dumpProfile());
+            DiagnosticLog.log(DiagnosticLog.INFO, scheduler.report());
             try {
-                hookWindowManagerService(classLoader);
+                cache.save();
             } catch (Throwable t) {
-                log("hook WindowManagerService failed", t);
+                DiagnosticLog.log(DiagnosticLog.SAVE_CACHE_FAILED, t);
             }
-        }
+            DiagnosticLog.flushSuppressed();
+        });
+        scheduler.seal();
+    }
+
+    @SuppressLint("PrivateApi")
+    @Override
+    public void onPackageLoaded(@NonNull PackageLoadedParam param) {
+        if (!param.isFirstPackage()) return;
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
-            // Screenshot detection (U~Baklava)
+        var classLoader = param.getClassLoader();
+        var pn = param.getPackageName();
+        if (HookPlan.role(pn) == HookPlan.ROLE_MISCONFIGURED) {
+            // The guard only needs package.<name>: that key alone, no config compiled, no listener
             try {
-                hookActivityTaskManagerService(classLoader);
+                if (!Config.handles(getRemotePreferences(Config.GROUP), pn)) return;
             } catch (Throwable t) {
-                log("hook ActivityTaskManagerService failed", t);
+                DiagnosticLog.log(DiagnosticLog.LOAD_CONFIG_FAILED, t);
             }
-
-            // Xiaomi HyperOS (U~Baklava)
-            // OS2.0.300.1.WOCCNXM
             try {
-                hookHyperOS(classLoader);
-            } catch (ClassNotFoundException ignored) {
-            } catch (Throwable t) {
-                log("hook HyperOS failed", t);
+                hookGuard();
+            } catch (Throwable ignored) {
             }
+            return;
         }
-
-        // ScreenCapture in WindowManagerService (S~Baklava)
-        try {
-            hookScreenCapture(classLoader);
-        } catch (Throwable t) {
-            log("hook ScreenCapture failed", t);
-        }
-
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
-            // Blackout permission check (S~T)
+        if (configListener == null) loadConfig();
+        if (!Config.current().handles(pn)) return;
+        var plan = HookPlan.of(pn, Config.current().sdk);
+        installHooks(classLoader, plan.table, new HookScheduler(0, (name, t) -> DiagnosticLog.log(DiagnosticLog.TASK_FAILED, name, t)));
+        if (plan.screenCapture) {
+            // ScreenCapture in App (S~T) (OPlus S~V)
+            // TODO: test Oplus Baklava
             try {
-                hookActivityManagerService(classLoader);
+                hookScreenCapture(classLoader);
             } catch (Throwable t) {
-                log("hook ActivityManagerService failed", t);
+                DiagnosticLog.log(DiagnosticLog.TASK_FAILED, "hook ScreenCapture", t);
             }
         }
+    }
 
-        // WifiDisplay (S~Baklava) / OverlayDisplay (S~Baklava) / VirtualDisplay (U~Baklava)
+    private void loadConfig() {
         try {
-            hookDisplayControl(classLoader);
+            var preferences = getRemotePreferences(Config.GROUP);
+            var effective = settings == null ? preferences : settings.over(preferences);
+            applyConfig(effective);
+            configListener = (p, key) -> applyConfig(effective);
+            preferences.registerOnSharedPreferenceChangeListener(configListener);
         } catch (Throwable t) {
-            log("hook DisplayControl failed", t);
+            DiagnosticLog.log(DiagnosticLog.LOAD_CONFIG_FAILED, t);
+            // What was set locally still applies
+            if (settings != null) applyConfig(settings.over(null));
         }
+    }
 
-        // VirtualDisplay with MediaProjection (S~Baklava)
+    private void applyConfig(SharedPreferences preferences) {
         try {
-            hookVirtualDisplayAdapter(classLoader);
-        } catch (Throwable t) {
-            log("hook VirtualDisplayAdapter failed", t);
+            var compiled = Config.compile(preferences);
+            // Masked under the publish lock, a hook the watchdog trips meanwhile stays off
+            Config.update(previous -> LatencyWatchdog.mask(compiled));
+        } catch (RuntimeException e) {
+            // Unparsable values, and ClassCastException from a preference of the wrong type
+            DiagnosticLog.log(DiagnosticLog.INVALID_CONFIG, Config.current(), e);
         }
+    }
 
-        // OneUI
-        try {
-            hookScreenshotHardwareBuffer(classLoader);
-        } catch (Throwable t) {
-            if (!(t instanceof ClassNotFoundException)) {
-                log("hook ScreenshotHardwareBuffer failed", t);
-            }
+    private void deoptimizeSystemServer(ClassLoader classLoader, HookScheduler scheduler) throws ClassNotFoundException {
+        // isSecureLocked, or the surface call site markers secure_index relies on instead, must not be
+        // inlined into a caller; only deoptimize the callers according to services.jar
+        var secureIndex = Config.current().secureIndex;
+        var targets = secureIndex ? SURFACE_CALL_SITES : SECURE_LOCKED;
+        var key = secureIndex ? "deoptimize.surface" : "deoptimize";
+        var cached = cachedCallers(key);
+        if (cached != null) {
+            deoptimizeCallers(classLoader, cached);
+            return;
         }
-        try {
-            hookOneUI(classLoader);
-        } catch (Throwable t) {
-            if (!(t instanceof ClassNotFoundException)) {
-                log("hook OneUI failed", t);
-            }
+        // Not scanned on this build yet: the known call sites now, services.jar off the boot path
+        if (secureIndex) {
+            deoptimizeKnownSurfaceCallers(classLoader);
+        } else {
+            deoptimizeKnownCallers(classLoader);
         }
-
-        // secureLocked flag
-        try {
-            // Screenshot
-            hookWindowState(classLoader);
-        } catch (Throwable t) {
-            log("hook WindowState failed", t);
-        }
-
-        // oplus dumpsys
-        // dumpsys window screenshot systemQuickTileScreenshotOut display_id=0
-        try {
-            hookOplus(classLoader);
-        } catch (Throwable t) {
-            if (!(t instanceof ClassNotFoundException)) {
-                log("hook Oplus failed", t);
+        scheduler.defer("scan services.jar", () -> {
+            try {
+                var callers = scanCallers(key, targets);
+                if (callers.isEmpty()) {
+                    DiagnosticLog.log(DiagnosticLog.NO_CALLER_FOUND, String.join(", ", targets));
+                } else {
+                    deoptimizeCallers(classLoader, callers);
+                }
+            } catch (Throwable t) {
+                DiagnosticLog.log(DiagnosticLog.SCAN_FAILED, t);
             }
-        }
+        });
     }
 
-    @SuppressLint("PrivateApi")
-    @Override
-    public void onPackageLoaded(@NonNull PackageLoadedParam param) {
-        if (!param.isFirstPackage()) return;
+    private void deoptimizeCallers(ClassLoader classLoader, List<DexScanner.MethodRef> callers) {
+        var count = deoptimizeMethods(classLoader, callers);
+        DiagnosticLog.log(DiagnosticLog.INFO, "deoptimized " + count + " of " + callers.size() + " callers");
+    }
 
-        var classLoader = param.getClassLoader();
-        var pn = param.getPackageName();
-        switch (pn) {
-            case OPLUS_SCREENSHOT:
-                // Oplus Screenshot 15.0.0
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.VANILLA_ICE_CREAM) {
-                    try {
-                        hookOplusScreenCapture(classLoader);
-                    } catch (Throwable t) {
-                        if (!(t instanceof ClassNotFoundException)) {
-                            log("hook OplusScreenCapture failed", t);
-                        }
-                    }
-                }
-            case FLYME_SYSTEMUIEX:
-            case OPLUS_APPPLATFORM:
-                // Flyme SystemUI Ext 10.3.0
-                // OPlus AppPlatform 13.1.0 / 14.0.0
-                try {
-                    hookScreenshotHardwareBuffer(classLoader);
-                } catch (Throwable t) {
-                    if (!(t instanceof ClassNotFoundException)) {
-                        log("hook ScreenshotHardwareBuffer failed", t);
-                    }
-                }
-            case SYSTEMUI:
-            case MIUI_SCREENSHOT:
-                if (OPLUS_APPPLATFORM.equals(pn) || OPLUS_SCREENSHOT.equals(pn) ||
-                        Build.VERSION.SDK_INT < Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
-                    // ScreenCapture in App (S~T) (OPlus S~V)
-                    // TODO: test Oplus Baklava
-                    try {
-                        hookScreenCapture(classLoader);
-                    } catch (Throwable t) {
-                        log("hook ScreenCapture failed", t);
-                    }
-                }
-                break;
-            default:
-                try {
-                    hookOnResume();
-                } catch (Throwable ignored) {
-                }
-        }
+    private void deoptimizeKnownSurfaceCallers(ClassLoader classLoader) throws ClassNotFoundException {
+        // Fallback: relayoutWindow > createSurfaceControl > createSurfaceLocked
+        deoptimizeMethods(
+                classLoader.loadClass("com.android.server.wm.WindowManagerService"),
+                "relayoutWindow", "createSurfaceControl");
     }
 
-    private void deoptimizeSystemServer(ClassLoader classLoader) throws ClassNotFoundException {
+    private void deoptimizeKnownCallers(ClassLoader classLoader) throws ClassNotFoundException {
+        // Fallback: probe the known call sites
         deoptimizeMethods(
                 classLoader.loadClass("com.android.server.wm.WindowStateAnimator"),
                 "createSurfaceLocked");
@@ -197,52 +232,203 @@ public class DisableFlagSecure extends XposedModule {
                 classLoader.loadClass("com.android.server.wm.WindowManagerService"),
                 "relayoutWindow");
 
-        for (int i = 0; i < 20; i++) {
+        // D8 numbers synthetic lambdas from 0 and javac anonymous classes from 1, without gaps,
+        // so the first missing class ends each probe
+        for (var clazz : numberedClasses(classLoader, "com.android.server.wm.RootWindowContainer$$ExternalSyntheticLambda", 0)) {
+            if (BiConsumer.class.isAssignableFrom(clazz)) {
+                deoptimizeMethods(clazz, "accept");
+            }
+        }
+        for (var clazz : numberedClasses(classLoader, "com.android.server.wm.DisplayContent$", 1)) {
+            if (BiPredicate.class.isAssignableFrom(clazz)) {
+                deoptimizeMethods(clazz, "test");
+            }
+        }
+    }
+
+    private static List<Class<?>> numberedClasses(ClassLoader classLoader, String prefix, int first) {
+        var classes = new ArrayList<Class<?>>();
+        for (int i = first; ; i++) {
             try {
-                var clazz = classLoader.loadClass("com.android.server.wm.RootWindowContainer$$ExternalSyntheticLambda" + i);
-                if (BiConsumer.class.isAssignableFrom(clazz)) {
-                    deoptimizeMethods(clazz, "accept");
-                }
-            } catch (ClassNotFoundException ignored) {
+                classes.add(classLoader.loadClass(prefix + i));
+            } catch (ClassNotFoundException e) {
+                return classes;
+            }
+        }
+    }
+
+    private void indexSecureWindows(ClassLoader classLoader) throws ReflectiveOperationException {
+        var windowState = classLoader.loadClass("com.android.server.wm.WindowState");
+        SecureWindows.bind(windowState.getDeclaredField("mClient"), windowState.getDeclaredField("mAttrs"),
+                classLoader.loadClass("com.android.server.wm.WindowStateAnimator").getDeclaredField("mWin"),
+                classLoader.loadClass("com.android.server.wm.Session").getDeclaredField("mUid"));
+        hookMethods(classLoader.loadClass("com.android.server.wm.WindowManagerService"),
+                SecureWindowHooker.class, "addWindow", "relayoutWindow");
+        hookMethods(windowState, SecureWindowRemovedHooker.class, "removeImmediately");
+    }
+
+    /**
+     * @return null if services.jar was not scanned on this build yet
+     */
+    private List<DexScanner.MethodRef> cachedCallers(String key) {
+        var cached = cache.get(key);
+        if (cached == null) return null;
+        var callers = new ArrayList<DexScanner.MethodRef>();
+        for (var ref : cached.split("\\|")) {
+            callers.add(DexScanner.MethodRef.parse(ref));
+        }
+        DeoptStats.scanned(0, callers.size(), true);
+        return callers;
+    }
+
+    private List<DexScanner.MethodRef> scanCallers(String key, String[] targets) throws IOException {
+        var begin = System.nanoTime();
+        var callers = new DexScanner(DexScanner.DEFAULT_INLINE_LIMIT, targets).scanJar(servicesJar());
+        DeoptStats.scanned(System.nanoTime() - begin, callers.size(), false);
+        if (!callers.isEmpty()) {
+            var sb = new StringBuilder();
+            for (var ref : callers) {
+                if (sb.length() > 0) sb.append('|');
+                sb.append(ref);
             }
+            cache.put(key, sb.toString());
+        }
+        return callers;
+    }
+
+    private static String servicesJar() {
+        var classpath = System.getenv("SYSTEMSERVERCLASSPATH");
+        if (classpath != null) {
+            for (var path : classpath.split(":")) {
+                if (path.endsWith("/services.jar")) return path;
+            }
+        }
+        return "/system/framework/services.jar";
+    }
+
+    private int deoptimizeMethods(ClassLoader classLoader, List<DexScanner.MethodRef> refs) {
+        int count = 0;
+        for (var ref : refs) {
+            Class<?> clazz;
             try {
-                var clazz = classLoader.loadClass("com.android.server.wm.DisplayContent$" + i);
-                if (BiPredicate.class.isAssignableFrom(clazz)) {
-                    deoptimizeMethods(clazz, "test");
-                }
+                clazz = classLoader.loadClass(ref.className);
             } catch (ClassNotFoundException ignored) {
+                continue;
+            }
+            // A caller inlined into a constructor is as stale as one in a method
+            Executable[] executables = "<init>".equals(ref.name) ? clazz.getDeclaredConstructors() : clazz.getDeclaredMethods();
+            for (var executable : executables) {
+                if (ref.matches(executable) && tracedDeoptimize(executable)) {
+                    count++;
+                }
             }
         }
+        return count;
     }
 
     private void deoptimizeMethods(Class<?> clazz, String... names) {
-        var list = Arrays.asList(names);
-        Arrays.stream(clazz.getDeclaredMethods())
-                .filter(method -> list.contains(method.getName()))
-                .forEach(this::deoptimize);
+        for (var name : names) {
+            for (var method : resolveMethods(clazz, name)) {
+                tracedDeoptimize(method);
+            }
+        }
+    }
+
+    private List<Method> resolveMethods(Class<?> clazz, String name) {
+        var begin = TraceBuffer.begin();
+        try {
+            return resolveMethodsUntraced(clazz, name);
+        } finally {
+            TraceBuffer.end(TraceBuffer.RESOLVE, begin);
+        }
+    }
+
+    private List<Method> resolveMethodsUntraced(Class<?> clazz, String name) {
+        var key = "methods." + clazz.getName() + "#" + name;
+        var cached = cache.get(key);
+        if (cached != null) {
+            try {
+                return HookCache.resolve(clazz, cached);
+            } catch (ReflectiveOperationException ignored) {
+                cache.remove(key);
+            }
+        }
+        var methods = members.methods(clazz, name);
+        cache.put(key, HookCache.signatures(methods));
+        return methods;
+    }
+
+    private void hookCallSites(ClassLoader classLoader) throws ClassNotFoundException {
+        var surfaceHooked = hookMethods(
+                classLoader.loadClass("com.android.server.wm.WindowStateAnimator"),
+                SurfaceCallSiteHooker.class, "createSurfaceLocked");
+        surfaceHooked += hookMethods(
+                classLoader.loadClass("com.android.server.wm.WindowState"),
+                SurfaceCallSiteHooker.class, "setInitialSurfaceControlProperties");
+        if (surfaceHooked > 0) {
+            CallSite.setTracked(CallSite.SURFACE);
+        }
+
+        var virtualDisplayHooked = hookMethods(
+                classLoader.loadClass("com.android.server.display.VirtualDisplayAdapter"),
+                VirtualDisplayCallSiteHooker.class, "createVirtualDisplayLocked");
+        if (virtualDisplayHooked > 0) {
+            CallSite.setTracked(CallSite.VIRTUAL_DISPLAY);
+        }
     }
 
-    private void hookWindowState(ClassLoader classLoader) throws ClassNotFoundException, NoSuchMethodException {
-        var windowStateClazz = classLoader.loadClass("com.android.server.wm.WindowState");
-        var isSecureLockedMethod = windowStateClazz.getDeclaredMethod("isSecureLocked");
-        hook(isSecureLockedMethod, SecureLockedHooker.class);
+    private static Field ownerUidField;
+
+    private void resolveWindowOwner(ClassLoader classLoader) throws ClassNotFoundException, NoSuchFieldException {
+        var field = classLoader.loadClass("com.android.server.wm.WindowState").getDeclaredField("mOwnerUid");
+        field.setAccessible(true);
+        ownerUidField = field;
+    }
+
+    private static int ownerUid(Object windowState) {
+        var field = ownerUidField;
+        if (field == null) return -1;
+        try {
+            return field.getInt(windowState);
+        } catch (IllegalAccessException e) {
+            return -1;
+        }
     }
 
-    private static Field captureSecureLayersField;
-    private static boolean isSecureContentPolicy = false; // 标记：true=新版策略(int), false=旧版开关(boolean)
+    private static volatile CapturePolicy capturePolicy;
 
     private void hookScreenCapture(ClassLoader classLoader) throws ClassNotFoundException, NoSuchFieldException {
-        Class<?> screenCaptureClazz;
-        Class<?> captureArgsClazz;
+        // 0. 同一 Build.FINGERPRINT 下直接使用上次解析的结果
+        var cachedClass = cache.get("screenCapture.class");
+        var cachedArgs = cache.get("screenCapture.args");
+        var cachedField = cache.get("screenCapture.field");
+        if (cachedClass != null && cachedArgs != null && cachedField != null) {
+            try {
+                var screenCaptureClazz = classLoader.loadClass(cachedClass);
+                capturePolicy = CapturePolicy.of(classLoader.loadClass(cachedArgs).getDeclaredField(cachedField));
+                hookCapture(screenCaptureClazz);
+                return;
+            } catch (ClassNotFoundException | NoSuchFieldException ignored) {
+                cache.remove("screenCapture.class");
+            }
+        }
+
+        Class<?> screenCaptureClazz = null;
+        Class<?> captureArgsClazz = null;
+        var sdk = Config.current().sdk;
 
         // 1. 定位类 (处理 Internal 变化)
-        try {
-            // Android 36+ (Baklava) 优先尝试 Internal
-            captureArgsClazz = classLoader.loadClass("android.window.ScreenCaptureInternal$CaptureArgs");
-            screenCaptureClazz = classLoader.loadClass("android.window.ScreenCaptureInternal");
-        } catch (ClassNotFoundException e) {
-            // 回退到旧版本路径
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+        if (sdk >= Build.VERSION_CODES.BAKLAVA) {
+            try {
+                // Android 36+ (Baklava) 优先尝试 Internal
+                captureArgsClazz = classLoader.loadClass("android.window.ScreenCaptureInternal$CaptureArgs");
+                screenCaptureClazz = classLoader.loadClass("android.window.ScreenCaptureInternal");
+            } catch (ClassNotFoundException ignored) {
+            }
+        }
+        if (screenCaptureClazz == null) {
+            // 回退到旧版本路径，早于 Baklava 不再探测 Internal
+            if (sdk >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
                 captureArgsClazz = classLoader.loadClass("android.window.ScreenCapture$CaptureArgs");
                 screenCaptureClazz = classLoader.loadClass("android.window.ScreenCapture");
             } else {
@@ -252,249 +438,795 @@ public class DisableFlagSecure extends XposedModule {
         }
 
         // 2. 定位字段 (处理 mCaptureSecureLayers -> mSecureContentPolicy 变化)
+        Field field;
         try {
             // 先试旧名字 (boolean)
-            captureSecureLayersField = captureArgsClazz.getDeclaredField("mCaptureSecureLayers");
-            isSecureContentPolicy = false;
+            field = captureArgsClazz.getDeclaredField("mCaptureSecureLayers");
         } catch (NoSuchFieldException e) {
             // 如果没找到，试新名字 (int)
             // 这里不捕获异常，如果两个都没有，抛出异常让日志记录由外层处理是合理的
-            captureSecureLayersField = captureArgsClazz.getDeclaredField("mSecureContentPolicy");
-            isSecureContentPolicy = true;
+            field = captureArgsClazz.getDeclaredField("mSecureContentPolicy");
         }
 
-        captureSecureLayersField.setAccessible(true);
+        // 按字段类型选定一次写法，之后每次调用不再判断
+        capturePolicy = CapturePolicy.of(field);
+        cache.put("screenCapture.class", screenCaptureClazz.getName());
+        cache.put("screenCapture.args", captureArgsClazz.getName());
+        cache.put("screenCapture.field", field.getName());
 
         // 3. Hook 方法
-        hookMethods(screenCaptureClazz, ScreenCaptureHooker.class, "nativeCaptureDisplay");
-        hookMethods(screenCaptureClazz, ScreenCaptureHooker.class, "nativeCaptureLayers");
+        hookCapture(screenCaptureClazz);
     }
 
+    private void hookCapture(Class<?> screenCaptureClazz) {
+        if (Config.current().captureOnBuild) {
+            // Every CaptureArgs, built locally or read from a Parcel, goes through these
+            for (var constructor : capturePolicy.captureArgsClass().getDeclaredConstructors()) {
+                var begin = TraceBuffer.begin();
+                var unhooker = hook(constructor, CaptureArgsHooker.class);
+                TraceBuffer.end(TraceBuffer.HOOK, begin);
+                LatencyWatchdog.register(HookStats.SCREEN_CAPTURE, unhooker);
+            }
+        } else {
+            hookMethods(screenCaptureClazz, ScreenCaptureHooker.class, "nativeCaptureDisplay", "nativeCaptureLayers");
+        }
+    }
 
-    private void hookDisplayControl(ClassLoader classLoader) throws ClassNotFoundException, NoSuchMethodException {
-        var displayControlClazz = Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE ?
-                classLoader.loadClass("com.android.server.display.DisplayControl") :
-                SurfaceControl.class;
-        var method = displayControlClazz.getDeclaredMethod(
-                Build.VERSION.SDK_INT >= Build.VERSION_CODES.VANILLA_ICE_CREAM ?
-                        "createVirtualDisplay" :
-                        "createDisplay", String.class, boolean.class);
-        hook(method, CreateDisplayHooker.class);
+    // index into HookTable.PROCESSES, -1 for none
+    private void installHooks(ClassLoader classLoader, int index, HookScheduler scheduler) {
+        if (index < 0) return;
+        var sdk = Config.current().sdk;
+        var secureIndex = Config.current().secureIndex;
+        var profile = DeviceProfile.get();
+        for (int i = HookTable.START[index]; i < HookTable.START[index + 1]; i++) {
+            if (sdk < HookTable.MIN_SDK[i] || sdk > HookTable.MAX_SDK[i]) continue;
+            if (secureIndex && HookTable.HOOKER.get(i) == SecureLockedHooker.class) continue;
+            if (!profile.accepts(HookTable.VENDOR[i])) {
+                skipped.add(HookTable.CLASS[i] + "#" + HookTable.METHOD[i] + " (" + HookTable.VENDOR[i] + ")");
+                continue;
+            }
+            var row = i;
+            var name = "hook " + HookTable.CLASS[i] + "#" + HookTable.METHOD[i];
+            if (prunable(i) && HookUsage.prunes(HookTable.CLASS[i] + "#" + HookTable.METHOD[i])) {
+                skipped.add(HookTable.CLASS[i] + "#" + HookTable.METHOD[i] + " (unused)");
+                continue;
+            }
+            // A window or capture right after boot must already see every hook deciding something
+            if (HookTable.CRITICAL[i] || watchedHook(HookTable.HOOKER.get(i)) >= 0) {
+                scheduler.critical(name, () -> installHook(classLoader, row));
+            } else {
+                scheduler.defer(name, () -> installHook(classLoader, row));
+            }
+        }
     }
 
-    private void hookVirtualDisplayAdapter(ClassLoader classLoader) throws ClassNotFoundException {
-        var displayControlClazz = classLoader.loadClass("com.android.server.display.VirtualDisplayAdapter");
-        hookMethods(displayControlClazz, CreateVirtualDisplayLockedHooker.class, "createVirtualDisplayLocked");
+    private void installHook(ClassLoader classLoader, int row) throws ReflectiveOperationException {
+        var begin = TraceBuffer.begin();
+        var clazz = classLoader.loadClass(HookTable.CLASS[row]);
+        TraceBuffer.end(TraceBuffer.LOAD_CLASS, begin);
+        List<Method> methods;
+        if (HookTable.SIGNATURE[row] == null) {
+            methods = resolveMethods(clazz, HookTable.METHOD[row]);
+        } else {
+            begin = TraceBuffer.begin();
+            methods = HookCache.resolve(clazz, HookTable.SIGNATURE[row]);
+            TraceBuffer.end(TraceBuffer.RESOLVE, begin);
+        }
+        var prunable = prunable(row);
+        var key = HookTable.CLASS[row] + "#" + HookTable.METHOD[row];
+        for (var method : methods) {
+            if (prunable && HookUsage.prunes(key, method)) {
+                skipped.add(method + " (unused)");
+                continue;
+            }
+            if (tracedHook(method, HookTable.HOOKER.get(row)) && prunable) HookUsage.register(key, method);
+        }
     }
 
-    @RequiresApi(Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
-    private void hookActivityTaskManagerService(ClassLoader classLoader) throws ClassNotFoundException, NoSuchMethodException {
-        var activityTaskManagerServiceClazz = classLoader.loadClass("com.android.server.wm.ActivityTaskManagerService");
-        var iBinderClazz = classLoader.loadClass("android.os.IBinder");
-        var iScreenCaptureObserverClazz = classLoader.loadClass("android.app.IScreenCaptureObserver");
-        var method = activityTaskManagerServiceClazz.getDeclaredMethod("registerScreenCaptureObserver", iBinderClazz, iScreenCaptureObserverClazz);
-        hook(method, ReturnNullHooker.class);
+    // Hooks that decide something, except the critical isSecureLocked and those prune_keep lists
+    private static boolean prunable(int row) {
+        if (HookTable.CRITICAL[row]) return false;
+        var hook = watchedHook(HookTable.HOOKER.get(row));
+        return hook >= 0 && !Config.current().keeps(hook);
     }
 
-    @RequiresApi(Build.VERSION_CODES.VANILLA_ICE_CREAM)
-    private void hookWindowManagerService(ClassLoader classLoader) throws ClassNotFoundException, NoSuchMethodException {
-        var windowManagerServiceClazz = classLoader.loadClass("com.android.server.wm.WindowManagerService");
-        var iScreenRecordingCallbackClazz = classLoader.loadClass("android.window.IScreenRecordingCallback");
-        var method = windowManagerServiceClazz.getDeclaredMethod("registerScreenRecordingCallback", iScreenRecordingCallbackClazz);
-        hook(method, ReturnFalseHooker.class);
+    private boolean tracedHook(Method method, Class<? extends Hooker> hooker) {
+        if (!bindArguments(method, hooker)) {
+            DiagnosticLog.log(DiagnosticLog.UNKNOWN_LAYOUT, method);
+            return false;
+        }
+        var begin = TraceBuffer.begin();
+        var unhooker = hook(method, hooker);
+        TraceBuffer.end(TraceBuffer.HOOK, begin);
+        registerStats(method, hooker);
+        LatencyWatchdog.register(watchedHook(hooker), unhooker);
+        return true;
     }
 
-    private void hookActivityManagerService(ClassLoader classLoader) throws ClassNotFoundException, NoSuchMethodException {
-        var activityTaskManagerServiceClazz = classLoader.loadClass("com.android.server.am.ActivityManagerService");
-        var method = activityTaskManagerServiceClazz.getDeclaredMethod("checkPermission", String.class, int.class, int.class);
-        hook(method, CheckPermissionHooker.class);
+    private boolean tracedDeoptimize(Executable executable) {
+        var begin = TraceBuffer.begin();
+        var method = executable instanceof Method ? (Method) executable : null;
+        var deoptimized = method != null ? deoptimize(method) : deoptimize((Constructor<?>) executable);
+        TraceBuffer.end(TraceBuffer.DEOPTIMIZE, begin);
+        if (deoptimized && Config.current().deoptStats && DeoptStats.register(executable)) {
+            if (method != null) {
+                hook(method, DeoptimizedHooker.class);
+            } else {
+                hook((Constructor<?>) executable, DeoptimizedHooker.class);
+            }
+        }
+        return deoptimized;
     }
 
-    @RequiresApi(Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
-    private void hookHyperOS(ClassLoader classLoader) throws ClassNotFoundException {
-        var windowManagerServiceImplClazz = classLoader.loadClass("com.android.server.wm.WindowManagerServiceImpl");
-        hookMethods(windowManagerServiceImplClazz, ReturnFalseHooker.class, "notAllowCaptureDisplay");
+    void dump(PrintWriter pw, String[] args) {
+        if (args.length >= 3 && "stats".equals(args[1])) {
+            switch (args[2]) {
+                case "on":
+                    Config.update(config -> config.withStats(true));
+                    break;
+                case "off":
+                    Config.update(config -> config.withStats(false));
+                    break;
+                case "reset":
+                    HookStats.reset();
+                    DeoptStats.reset();
+                    break;
+            }
+        }
+        if (args.length >= 3 && "prune".equals(args[1]) && "reset".equals(args[2])) {
+            try {
+                HookUsage.reset();
+                pw.println("hook usage forgotten, the next boot learns again");
+            } catch (IOException e) {
+                pw.println("prune reset failed: " + e);
+            }
+        }
+        if (args.length >= 4 && "set".equals(args[1])) {
+            try {
+                settings.set(args[2], args[3]);
+                pw.println(args[2] + " set" + (Config.takesReboot(args[2]) ? ", takes a reboot" : ""));
+            } catch (IllegalArgumentException e) {
+                pw.println("invalid setting " + args[2] + " " + args[3] + ": " + e.getMessage());
+            } catch (IOException e) {
+                pw.println(args[2] + " set until reboot, saving failed: " + e);
+            }
+            applyConfig(settings);
+        }
+        if (args.length >= 3 && "unset".equals(args[1])) {
+            try {
+                settings.unset(args[2]);
+            } catch (IllegalArgumentException e) {
+                pw.println("invalid setting " + args[2] + ": " + e.getMessage());
+            } catch (IOException e) {
+                pw.println(args[2] + " unset until reboot, saving failed: " + e);
+            }
+            applyConfig(settings);
+        }
+        if (args.length >= 3 && "policy".equals(args[1])) {
+            try {
+                var policy = UidPolicy.parse(args[2]);
+                Config.update(config -> config.withUidPolicy(policy));
+            } catch (IllegalArgumentException e) {
+                pw.println("invalid policy " + args[2] + ": " + e.getMessage());
+            }
+        }
+        if (args.length >= 3 && "recorders".equals(args[1])) {
+            try {
+                var policy = UidPolicy.parse(args[2]);
+                Config.update(config -> config.withRecorderPolicy(policy));
+            } catch (IllegalArgumentException e) {
+                pw.println("invalid policy " + args[2] + ": " + e.getMessage());
+            }
+        }
+        if (args.length >= 4 && "hook".equals(args[1])) {
+            var hook = Config.hook(args[2]);
+            if (hook < 0) {
+                pw.println("unknown hook " + args[2] + ", one of " + String.join(", ", Config.HOOKS));
+            } else if ("on".equals(args[3]) && !LatencyWatchdog.rearm(hook)) {
+                pw.println(args[2] + " was unhooked by the watchdog, stays off until reboot");
+            } else {
+                var on = "on".equals(args[3]);
+                Config.update(config -> config.withHook(hook, on));
+            }
+        }
+        if (args.length >= 4 && "session".equals(args[1])) {
+            // indexOf gives POLICY_DEFAULT for default
+            var policy = Arrays.asList(VirtualDisplaySessions.POLICIES).indexOf(args[3]);
+            if (policy < 0 && !"default".equals(args[3])) {
+                pw.println("unknown session policy " + args[3] + ", one of " +
+                        String.join(", ", VirtualDisplaySessions.POLICIES) + ", default");
+            } else {
+                try {
+                    VirtualDisplaySessions.setPolicy(Integer.parseInt(args[2]), policy);
+                } catch (NumberFormatException e) {
+                    pw.println("invalid uid " + args[2]);
+                }
+            }
+        }
+        if (args.length >= 3 && "watchdog".equals(args[1])) {
+            var mode = Arrays.asList(Config.WATCHDOG_MODES).indexOf(args[2]);
+            if (mode < 0) {
+                pw.println("unknown watchdog mode " + args[2] + ", one of " + String.join(", ", Config.WATCHDOG_MODES));
+            } else {
+                Config.update(config -> config.withWatchdog(mode));
+            }
+        }
+        if (args.length >= 3 && "trace".equals(args[1])) {
+            switch (args[2]) {
+                case "on":
+                    Config.update(config -> config.withTrace(true));
+                    break;
+                case "off":
+                    Config.update(config -> config.withTrace(false));
+                    break;
+                case "export":
+                    // Fixed path, the file is written as system_server
+                    try (var out = new FileOutputStream(TRACE_FILE)) {
+                        TraceExporter.write(out, TraceBuffer.snapshot(), Process.myPid(), "system_server",
+                                System.nanoTime(), SystemClock.elapsedRealtimeNanos());
+                        pw.println("trace written to " + TRACE_FILE);
+                    } catch (IOException e) {
+                        pw.println("trace export failed: " + e);
+                    }
+                    break;
+            }
+        }
+        pw.println(dumpProfile());
+        pw.println("config: " + Config.current());
+        pw.println("local settings: " + settings.values());
+        pw.println("hooker trace sampling " + (TraceBuffer.isSampling() ? "on" : "off"));
+        HookStats.dump(pw);
+        LatencyWatchdog.dump(pw);
+        VirtualDisplaySessions.dump(pw);
+        SecureWindows.dump(pw);
+        DeoptStats.dump(pw);
+        HookUsage.dump(pw);
+        DiagnosticLog.dump(pw);
     }
 
-    private void hookScreenshotHardwareBuffer(ClassLoader classLoader) throws ClassNotFoundException, NoSuchMethodException {
-        var screenshotHardwareBufferClazz = classLoader.loadClass(
-                Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE ?
-                        "android.window.ScreenCapture$ScreenshotHardwareBuffer" :
-                        "android.view.SurfaceControl$ScreenshotHardwareBuffer");
-        var method = screenshotHardwareBufferClazz.getDeclaredMethod("containsSecureLayers");
-        hook(method, ReturnFalseHooker.class);
+    String dumpProfile() {
+        synchronized (skipped) {
+            return "device profile " + DeviceProfile.get() + ", skipped " + skipped.size() + " hooks" +
+                    (skipped.isEmpty() ? "" : ": " + String.join(", ", skipped));
+        }
     }
 
-    @RequiresApi(Build.VERSION_CODES.VANILLA_ICE_CREAM)
-    private void hookOplusScreenCapture(ClassLoader classLoader) throws ClassNotFoundException, NoSuchMethodException {
-        var oplusScreenCaptureClazz = classLoader.loadClass("com.oplus.screenshot.OplusScreenCapture$CaptureArgs$Builder");
-        var method = oplusScreenCaptureClazz.getDeclaredMethod("setUid", long.class);
-        hook(method, OplusScreenCaptureHooker.class);
+    private int hookMethods(Class<?> clazz, Class<? extends Hooker> hooker, String... names) {
+        int count = 0;
+        for (var name : names) {
+            for (var method : resolveMethods(clazz, name)) {
+                if (tracedHook(method, hooker)) count++;
+            }
+        }
+        return count;
     }
 
-    private void hookOplus(ClassLoader classLoader) throws ClassNotFoundException {
-        // caller: com.android.server.wm.OplusLongshotWindowDump#dumpWindows
-        var longshotMainClazz = classLoader.loadClass("com.android.server.wm.OplusLongshotMainWindow");
-        hookMethods(longshotMainClazz, ReturnFalseHooker.class, "hasSecure");
+    // Hookers that index their arguments learn the layout of each overload here
+    private static boolean bindArguments(Method method, Class<? extends Hooker> hooker) {
+        if (hooker == CreateVirtualDisplayLockedHooker.class) return CreateVirtualDisplayLockedHooker.bind(method);
+        if (hooker == ScreenCaptureHooker.class) return ScreenCaptureHooker.bind(method);
+        if (hooker == SecureWindowHooker.class) return SecureWindowHooker.bind(method);
+        return true;
     }
 
-    private void hookOneUI(ClassLoader classLoader) throws ClassNotFoundException {
-        var wmScreenshotControllerClazz = classLoader.loadClass("com.android.server.wm.WmScreenshotController");
-        hookMethods(wmScreenshotControllerClazz, ReturnTrueHooker.class, "canBeScreenshotTarget");
+    // HookStats hook ID of a hooker that records latency, -1 for the call site markers and the like
+    private static int watchedHook(Class<? extends Hooker> hooker) {
+        if (hooker == SecureLockedHooker.class) return HookStats.SECURE_LOCKED;
+        if (hooker == CreateDisplayHooker.class) return HookStats.CREATE_DISPLAY;
+        if (hooker == CreateVirtualDisplayLockedHooker.class) return HookStats.CREATE_VIRTUAL_DISPLAY_LOCKED;
+        if (hooker == ScreenCaptureHooker.class) return HookStats.SCREEN_CAPTURE;
+        if (hooker == CheckPermissionHooker.class) return HookStats.CHECK_PERMISSION;
+        if (hooker == ReturnTrueHooker.class || hooker == ReturnFalseHooker.class || hooker == ReturnNullHooker.class) {
+            return HookStats.CONSTANT;
+        }
+        if (hooker == ContainsSecureLayersHooker.class) return HookStats.CONTAINS_SECURE_LAYERS;
+        if (hooker == SecureWindowHooker.class) return HookStats.SECURE_WINDOW;
+        return -1;
     }
 
-    private void hookMethods(Class<?> clazz, Class<? extends Hooker> hooker, String... names) {
-        var list = Arrays.asList(names);
-        Arrays.stream(clazz.getDeclaredMethods())
-                .filter(method -> list.contains(method.getName()))
-                .forEach(method -> hook(method, hooker));
+    private static void registerStats(Method method, Class<? extends Hooker> hooker) {
+        // Constant hookers are shared by several methods, count them per method
+        if (hooker == ReturnTrueHooker.class || hooker == ReturnFalseHooker.class || hooker == ReturnNullHooker.class) {
+            HookStats.register(method);
+        }
     }
 
-    private void hookOnResume() throws NoSuchMethodException {
+    private static MethodUnhooker<Method> guard;
+
+    private void hookGuard() throws NoSuchMethodException {
         var method = Activity.class.getDeclaredMethod("onResume");
-        hook(method, ToastHooker.class);
+        guard = hook(method, ToastHooker.class);
     }
 
+    // WifiDisplay (S~Baklava) / OverlayDisplay (S~Baklava) / VirtualDisplay (U~Baklava)
+    @HookTarget(className = "android.view.SurfaceControl", method = "createDisplay",
+            parameterTypes = {"java.lang.String", "boolean"}, maxSdk = Build.VERSION_CODES.TIRAMISU)
+    @HookTarget(className = "com.android.server.display.DisplayControl", method = "createDisplay",
+            parameterTypes = {"java.lang.String", "boolean"},
+            minSdk = Build.VERSION_CODES.UPSIDE_DOWN_CAKE, maxSdk = Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
+    @HookTarget(className = "com.android.server.display.DisplayControl", method = "createVirtualDisplay",
+            parameterTypes = {"java.lang.String", "boolean"}, minSdk = Build.VERSION_CODES.VANILLA_ICE_CREAM)
     @XposedHooker
-    private static class CreateDisplayHooker implements Hooker {
+    static class CreateDisplayHooker implements Hooker {
 
         @BeforeInvocation
         public static void before(@NonNull BeforeHookCallback callback) {
-            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
-                var stackTrace = new Throwable().getStackTrace();
-                for (int i = 4; i < stackTrace.length && i < 8; i++) {
-                    var name = stackTrace[i].getMethodName();
-                    if (name.equals("createVirtualDisplayLocked")) {
-                        return;
+            var config = Config.current();
+            if (!config.enabled(HookStats.CREATE_DISPLAY)) return;
+            var start = HookStats.start();
+            var outcome = secure(callback, config.sdk);
+            if (outcome == HookStats.CREATE_DISPLAY_SECURE) HookUsage.mark(callback.getMember());
+            HookStats.record(HookStats.CREATE_DISPLAY, outcome, start);
+        }
+
+        private static int secure(BeforeHookCallback callback, int sdk) {
+            if (sdk < Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+                if (CallSite.isTracked(CallSite.VIRTUAL_DISPLAY)) {
+                    if (CallSite.inside(CallSite.VIRTUAL_DISPLAY)) return HookStats.CREATE_DISPLAY_CALL_SITE;
+                } else {
+                    var stackTrace = new Throwable().getStackTrace();
+                    for (int i = 4; i < stackTrace.length && i < 8; i++) {
+                        var name = stackTrace[i].getMethodName();
+                        if (name.equals("createVirtualDisplayLocked")) {
+                            return HookStats.CREATE_DISPLAY_CALL_SITE;
+                        }
                     }
                 }
             }
             callback.getArgs()[1] = true;
+            return HookStats.CREATE_DISPLAY_SECURE;
         }
     }
 
+    // Blackout permission check (S~T)
+    @HookTarget(className = "com.android.server.am.ActivityManagerService", method = "checkPermission",
+            parameterTypes = {"java.lang.String", "int", "int"}, maxSdk = Build.VERSION_CODES.TIRAMISU)
     @XposedHooker
-    private static class CheckPermissionHooker implements Hooker {
+    static class CheckPermissionHooker implements Hooker {
 
         @BeforeInvocation
         public static void before(@NonNull BeforeHookCallback callback) {
+            if (!Config.current().enabled(HookStats.CHECK_PERMISSION)) return;
+            var start = HookStats.start();
             var permission = callback.getArgs()[0];
             if ("android.permission.CAPTURE_BLACKOUT_CONTENT".equals(permission)) {
                 callback.getArgs()[0] = "android.permission.READ_FRAME_BUFFER";
+                HookUsage.mark(callback.getMember());
+                HookStats.record(HookStats.CHECK_PERMISSION, HookStats.CHECK_PERMISSION_REWRITE, start);
+            } else {
+                HookStats.record(HookStats.CHECK_PERMISSION, HookStats.CHECK_PERMISSION_PASS, start);
             }
         }
     }
 
+    // Oplus Screenshot 15.0.0
+    @HookTarget(className = "com.oplus.screenshot.OplusScreenCapture$CaptureArgs$Builder", method = "setUid",
+            parameterTypes = "long", minSdk = Build.VERSION_CODES.VANILLA_ICE_CREAM,
+            vendor = "oplus", process = OPLUS_SCREENSHOT)
     @XposedHooker
-    private static class OplusScreenCaptureHooker implements Hooker {
+    static class OplusScreenCaptureHooker implements Hooker {
 
         @BeforeInvocation
         public static void before(@NonNull BeforeHookCallback callback) {
+            if (!Config.current().enabled(HookStats.SCREEN_CAPTURE)) return;
             callback.getArgs()[0] = -1;
         }
     }
 
     @XposedHooker
-    private static class ScreenCaptureHooker implements Hooker {
+    static class ScreenCaptureHooker implements Hooker {
+        private static final ArgLayout layouts = new ArgLayout();
+
+        // Needs capturePolicy
+        static boolean bind(Method method) {
+            var captureArgs = capturePolicy.captureArgsClass();
+            var types = method.getParameterTypes();
+            for (int i = 0; i < types.length; i++) {
+                if (captureArgs.isAssignableFrom(types[i])) {
+                    layouts.put(method, i);
+                    return true;
+                }
+            }
+            return false;
+        }
 
         @BeforeInvocation
         public static void before(@NonNull BeforeHookCallback callback) {
-            var captureArgs = callback.getArgs()[0];
+            if (!Config.current().enabled(HookStats.SCREEN_CAPTURE)) return;
+            var start = HookStats.start();
+            HookStats.record(HookStats.SCREEN_CAPTURE, capture(callback), start);
+        }
+
+        private static int capture(BeforeHookCallback callback) {
+            var policy = capturePolicy;
+            var layout = layouts.get(callback.getMember());
             // 防止初始化失败导致的空指针
-            if (captureSecureLayersField == null) return;
+            if (policy == null || layout == null) return HookStats.SCREEN_CAPTURE_UNRESOLVED;
+            return CaptureArgsHooker.apply(policy, callback.getArgs()[layout[0]]);
+        }
+    }
 
+    // capture_on_build: CaptureArgs constructors instead of the native captures
+    @XposedHooker
+    static class CaptureArgsHooker implements Hooker {
+        @AfterInvocation
+        public static void after(@NonNull AfterHookCallback callback) {
+            if (!Config.current().enabled(HookStats.SCREEN_CAPTURE)) return;
+            var start = HookStats.start();
+            var policy = capturePolicy;
+            HookStats.record(HookStats.SCREEN_CAPTURE, policy == null ? HookStats.SCREEN_CAPTURE_UNRESOLVED
+                    : apply(policy, callback.getThisObject()), start);
+        }
+
+        static int apply(CapturePolicy policy, Object captureArgs) {
             try {
-                if (isSecureContentPolicy) {
-                    // Android 36+: 设置 SECURE_CONTENT_POLICY_CAPTURE = 1
-                    captureSecureLayersField.setInt(captureArgs, 1);
-                } else {
-                    // 旧版本: 设置 boolean = true
-                    captureSecureLayersField.setBoolean(captureArgs, true);
-                }
-            } catch (IllegalAccessException t) {
-                module.log("ScreenCaptureHooker failed", t);
+                policy.apply(captureArgs);
+                return HookStats.SCREEN_CAPTURE_OVERRIDE;
+            } catch (Throwable t) {
+                DiagnosticLog.log(DiagnosticLog.SCREEN_CAPTURE_FAILED, t);
+                return HookStats.SCREEN_CAPTURE_FAILED;
             }
         }
     }
 
+    // VirtualDisplay with MediaProjection (S~Baklava)
+    @HookTarget(className = "com.android.server.display.VirtualDisplayAdapter",
+            method = "createVirtualDisplayLocked", allOverloads = true)
     @XposedHooker
-    private static class CreateVirtualDisplayLockedHooker implements Hooker {
+    static class CreateVirtualDisplayLockedHooker implements Hooker {
+        private static final int PROJECTION = 0;
+        private static final int OWNER_UID = 1;
+        private static final int FLAGS = 2;
+        private static final int CALLBACK = 3;
+        private static final ArgLayout layouts = new ArgLayout();
+
+        // (callback, projection, ownerUid, packageName, [uniqueId,] surface, flags, config, ...)
+        static boolean bind(Method method) {
+            var types = method.getParameterTypes();
+            var projection = ArgLayout.indexOf(types, "android.media.projection.IMediaProjection", 0);
+            // ownerUid is the first int after the projection, flags the int right after the surface
+            var ownerUid = projection < 0 ? -1 : ArgLayout.indexOf(types, "int", projection + 1);
+            var surface = ArgLayout.indexOf(types, "android.view.Surface", 0);
+            var flags = surface < 0 || surface + 1 >= types.length || types[surface + 1] != int.class ? -1 : surface + 1;
+            if (ownerUid < 0 || flags < 0 || ownerUid == flags) return false;
+            // Sessions are only tracked with the callback, whose binder is the app token
+            var callback = ArgLayout.indexOf(types, "android.hardware.display.IVirtualDisplayCallback", 0);
+            layouts.put(method, projection, ownerUid, flags, callback);
+            return true;
+        }
 
         @BeforeInvocation
         public static void before(@NonNull BeforeHookCallback callback) {
-            var caller = (int) callback.getArgs()[2];
-            if (caller >= 10000 && callback.getArgs()[1] == null) {
+            var config = Config.current();
+            if (!config.enabled(HookStats.CREATE_VIRTUAL_DISPLAY_LOCKED)) return;
+            var start = HookStats.start();
+            HookStats.record(HookStats.CREATE_VIRTUAL_DISPLAY_LOCKED, secure(callback, config), start);
+        }
+
+        // No display came out of it, nothing to release later
+        @AfterInvocation
+        public static void after(@NonNull AfterHookCallback callback) {
+            if (callback.getResult() != null) return;
+            var layout = layouts.get(callback.getMember());
+            if (layout == null) return;
+            var token = token(callback.getArgs(), layout);
+            if (token != null) VirtualDisplaySessions.remove(token);
+        }
+
+        private static int secure(BeforeHookCallback callback, Config config) {
+            var layout = layouts.get(callback.getMember());
+            if (layout == null) {
+                DiagnosticLog.log(DiagnosticLog.FLAG_NOT_FOUND);
+                return HookStats.VIRTUAL_DISPLAY_FLAG_NOT_FOUND;
+            }
+            var args = callback.getArgs();
+            var ownerUid = (int) args[layout[OWNER_UID]];
+            var projection = args[layout[PROJECTION]] != null;
+            var flags = (int) args[layout[FLAGS]];
+            var override = VirtualDisplaySessions.policy(ownerUid);
+            int outcome;
+            if (ownerUid >= 10000 && !projection) {
                 // not os and not media projection
-                return;
+                outcome = HookStats.VIRTUAL_DISPLAY_APP;
+            } else if (override == VirtualDisplaySessions.POLICY_KEEP ||
+                    override == VirtualDisplaySessions.POLICY_DEFAULT && !config.recorderPolicy.allows(ownerUid)) {
+                outcome = HookStats.VIRTUAL_DISPLAY_NOT_ALLOWED;
+            } else {
+                if ((flags & DisplayManager.VIRTUAL_DISPLAY_FLAG_SECURE) == 0) {
+                    args[layout[FLAGS]] = flags | DisplayManager.VIRTUAL_DISPLAY_FLAG_SECURE;
+                    HookUsage.mark(callback.getMember());
+                }
+                outcome = HookStats.VIRTUAL_DISPLAY_SECURE;
             }
-            for (int i = 3; i < callback.getArgs().length; i++) {
-                var arg = callback.getArgs()[i];
-                if (arg instanceof Integer) {
-                    var flags = (int) arg;
-                    flags |= DisplayManager.VIRTUAL_DISPLAY_FLAG_SECURE;
-                    callback.getArgs()[i] = flags;
-                    return;
+            if (config.maxSessions > 0) {
+                var token = token(args, layout);
+                if (token != null) {
+                    var secure = outcome == HookStats.VIRTUAL_DISPLAY_SECURE;
+                    VirtualDisplaySessions.put(token, new VirtualDisplaySessions.Session(ownerUid, projection, flags,
+                            secure ? flags | DisplayManager.VIRTUAL_DISPLAY_FLAG_SECURE : flags,
+                            secure ? VirtualDisplaySessions.POLICY_SECURE : VirtualDisplaySessions.POLICY_KEEP,
+                            System.nanoTime()), config.maxSessions);
                 }
             }
-            module.log("flag not found in CreateVirtualDisplayLockedHooker");
+            return outcome;
+        }
+
+        private static Object token(Object[] args, int[] layout) {
+            if (layout[CALLBACK] < 0 || !(args[layout[CALLBACK]] instanceof IInterface)) return null;
+            return ((IInterface) args[layout[CALLBACK]]).asBinder();
         }
     }
 
+    // Virtual display gone: released by the app, its process died or the projection stopped (S~Baklava)
+    @HookTarget(className = "com.android.server.display.VirtualDisplayAdapter", method = "releaseVirtualDisplayLocked",
+            parameterTypes = "android.os.IBinder")
+    @HookTarget(className = "com.android.server.display.VirtualDisplayAdapter", method = "handleBinderDiedLocked",
+            parameterTypes = "android.os.IBinder")
+    @HookTarget(className = "com.android.server.display.VirtualDisplayAdapter",
+            method = "handleMediaProjectionStoppedLocked", parameterTypes = "android.os.IBinder")
     @XposedHooker
-    private static class SecureLockedHooker implements Hooker {
+    static class VirtualDisplayReleaseHooker implements Hooker {
+        @BeforeInvocation
+        public static void before(@NonNull BeforeHookCallback callback) {
+            var token = callback.getArgs()[0];
+            if (token != null) VirtualDisplaySessions.remove(token);
+        }
+    }
+
+    // secureLocked flag: Screenshot
+    @HookTarget(className = "com.android.server.wm.WindowState", method = "isSecureLocked", critical = true)
+    @XposedHooker
+    static class SecureLockedHooker implements Hooker {
 
         @BeforeInvocation
         public static void before(@NonNull BeforeHookCallback callback) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+            var config = Config.current();
+            if (!config.enabled(HookStats.SECURE_LOCKED)) return;
+            var start = HookStats.start();
+            if (skip()) {
+                HookStats.record(HookStats.SECURE_LOCKED, HookStats.SECURE_LOCKED_CALL_SITE, start);
+                return;
+            }
+            var policy = config.uidPolicy;
+            if (!policy.allowsAll() && !policy.allows(ownerUid(callback.getThisObject()))) {
+                HookStats.record(HookStats.SECURE_LOCKED, HookStats.SECURE_LOCKED_NOT_ALLOWED, start);
+                return;
+            }
+            callback.returnAndSkip(false);
+            HookStats.record(HookStats.SECURE_LOCKED, HookStats.SECURE_LOCKED_RETURN_FALSE, start);
+        }
+
+        private static boolean skip() {
+            if (CallSite.isTracked(CallSite.SURFACE)) {
+                return CallSite.inside(CallSite.SURFACE);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
                 var walker = StackWalker.getInstance();
-                var match = walker.walk(frames -> frames
+                return walker.walk(frames -> frames
                         .map(StackWalker.StackFrame::getMethodName)
                         .limit(6)
                         .skip(2)
                         .anyMatch(s -> s.equals("setInitialSurfaceControlProperties") || s.equals("createSurfaceLocked")));
-                if (match) return;
             } else {
                 var stackTrace = new Throwable().getStackTrace();
                 for (int i = 4; i < stackTrace.length && i < 8; i++) {
                     var name = stackTrace[i].getMethodName();
                     if (name.equals("setInitialSurfaceControlProperties") ||
                             name.equals("createSurfaceLocked")) {
-                        return;
+                        return true;
                     }
                 }
+                return false;
             }
-            callback.returnAndSkip(false);
         }
     }
 
     @XposedHooker
-    private static class ReturnTrueHooker implements Hooker {
+    static class SurfaceCallSiteHooker implements Hooker {
+        @BeforeInvocation
+        public static void before(@NonNull BeforeHookCallback callback) {
+            // secure_index: the surface still gets FLAG_SECURE, as isSecureLocked keeps it here
+            if (SecureWindows.isActive() && !CallSite.inside(CallSite.SURFACE)) {
+                SecureWindows.restore(callback.getThisObject());
+            }
+            CallSite.enter(CallSite.SURFACE);
+        }
+
+        @AfterInvocation
+        public static void after(@NonNull AfterHookCallback callback) {
+            CallSite.exit(CallSite.SURFACE);
+            if (SecureWindows.isActive() && !CallSite.inside(CallSite.SURFACE)) {
+                SecureWindows.clear(callback.getThisObject());
+            }
+        }
+    }
+
+    // secure_index: the layout params a window is added or relaid out with (S~Baklava)
+    @XposedHooker
+    static class SecureWindowHooker implements Hooker {
+        private static final int SESSION = 0;
+        private static final int CLIENT = 1;
+        private static final int ATTRS = 2;
+        private static final ArgLayout layouts = new ArgLayout();
+
+        // (session, client, attrs, ...)
+        static boolean bind(Method method) {
+            var types = method.getParameterTypes();
+            var client = ArgLayout.indexOf(types, "android.view.IWindow", 0);
+            var attrs = ArgLayout.indexOf(types, "android.view.WindowManager$LayoutParams", 0);
+            if (client < 1 || attrs < 0) return false;
+            layouts.put(method, client - 1, client, attrs);
+            return true;
+        }
+
+        @BeforeInvocation
+        public static void before(@NonNull BeforeHookCallback callback) {
+            var config = Config.current();
+            if (!config.enabled(HookStats.SECURE_WINDOW)) return;
+            var layout = layouts.get(callback.getMember());
+            if (layout == null) return;
+            var args = callback.getArgs();
+            // relayoutWindow gets no attrs when they did not change
+            if (!(args[layout[ATTRS]] instanceof WindowManager.LayoutParams)) return;
+            if (!(args[layout[CLIENT]] instanceof IInterface)) return;
+            var start = HookStats.start();
+            // Session#mUid is what addWindow gives the WindowState as mOwnerUid
+            var outcome = SecureWindows.apply(((IInterface) args[layout[CLIENT]]).asBinder(),
+                    (WindowManager.LayoutParams) args[layout[ATTRS]], SecureWindows.ownerUid(args[layout[SESSION]]),
+                    config.uidPolicy);
+            if (outcome >= 0) HookStats.record(HookStats.SECURE_WINDOW, outcome, start);
+        }
+    }
+
+    // deopt_stats: entry/exit of the methods deoptimizeSystemServer forced into the interpreter
+    @XposedHooker
+    static class DeoptimizedHooker implements Hooker {
+        @BeforeInvocation
+        public static void before(@NonNull BeforeHookCallback callback) {
+            DeoptStats.enter(callback.getMember());
+        }
+
+        @AfterInvocation
+        public static void after(@NonNull AfterHookCallback callback) {
+            DeoptStats.exit(callback.getMember());
+        }
+    }
+
+    // secure_index: window gone, including its client dying
+    @XposedHooker
+    static class SecureWindowRemovedHooker implements Hooker {
+        @BeforeInvocation
+        public static void before(@NonNull BeforeHookCallback callback) {
+            SecureWindows.removeWindow(callback.getThisObject());
+        }
+    }
+
+    @XposedHooker
+    static class VirtualDisplayCallSiteHooker implements Hooker {
         @BeforeInvocation
         public static void before(@NonNull BeforeHookCallback callback) {
+            CallSite.enter(CallSite.VIRTUAL_DISPLAY);
+        }
+
+        @AfterInvocation
+        public static void after(@NonNull AfterHookCallback callback) {
+            CallSite.exit(CallSite.VIRTUAL_DISPLAY);
+        }
+    }
+
+    // OneUI
+    @HookTarget(className = "com.android.server.wm.WmScreenshotController", method = "canBeScreenshotTarget",
+            allOverloads = true, vendor = "samsung")
+    @XposedHooker
+    static class ReturnTrueHooker implements Hooker {
+        @BeforeInvocation
+        public static void before(@NonNull BeforeHookCallback callback) {
+            if (!Config.current().enabled(HookStats.CONSTANT) || LatencyWatchdog.isOff(callback.getMember())) return;
+            var start = HookStats.start();
             callback.returnAndSkip(true);
+            HookStats.recordMember(callback.getMember());
+            HookUsage.mark(callback.getMember());
+            HookStats.record(HookStats.CONSTANT, HookStats.CONSTANT_RETURN, start, callback.getMember());
         }
     }
 
+    // Screen record detection (V~Baklava)
+    @HookTarget(className = "com.android.server.wm.WindowManagerService", method = "registerScreenRecordingCallback",
+            parameterTypes = "android.window.IScreenRecordingCallback", minSdk = Build.VERSION_CODES.VANILLA_ICE_CREAM)
+    // Xiaomi HyperOS (U~Baklava)
+    // OS2.0.300.1.WOCCNXM
+    @HookTarget(className = "com.android.server.wm.WindowManagerServiceImpl", method = "notAllowCaptureDisplay",
+            allOverloads = true, minSdk = Build.VERSION_CODES.UPSIDE_DOWN_CAKE, vendor = "xiaomi")
+    // oplus dumpsys
+    // dumpsys window screenshot systemQuickTileScreenshotOut display_id=0
+    // caller: com.android.server.wm.OplusLongshotWindowDump#dumpWindows
+    @HookTarget(className = "com.android.server.wm.OplusLongshotMainWindow", method = "hasSecure",
+            allOverloads = true, vendor = "oplus")
     @XposedHooker
-    private static class ReturnFalseHooker implements Hooker {
+    static class ReturnFalseHooker implements Hooker {
         @BeforeInvocation
         public static void before(@NonNull BeforeHookCallback callback) {
+            if (!Config.current().enabled(HookStats.CONSTANT) || LatencyWatchdog.isOff(callback.getMember())) return;
+            var start = HookStats.start();
             callback.returnAndSkip(false);
+            HookStats.recordMember(callback.getMember());
+            HookUsage.mark(callback.getMember());
+            HookStats.record(HookStats.CONSTANT, HookStats.CONSTANT_RETURN, start, callback.getMember());
         }
     }
 
+    // OneUI (system) / Flyme SystemUI Ext 10.3.0 / OPlus AppPlatform 13.1.0 / 14.0.0 / Oplus Screenshot
+    @HookTarget(className = "android.view.SurfaceControl$ScreenshotHardwareBuffer", method = "containsSecureLayers",
+            maxSdk = Build.VERSION_CODES.TIRAMISU,
+            process = {SYSTEM, FLYME_SYSTEMUIEX, OPLUS_APPPLATFORM, OPLUS_SCREENSHOT})
+    @HookTarget(className = "android.window.ScreenCapture$ScreenshotHardwareBuffer", method = "containsSecureLayers",
+            minSdk = Build.VERSION_CODES.UPSIDE_DOWN_CAKE,
+            process = {SYSTEM, FLYME_SYSTEMUIEX, OPLUS_APPPLATFORM, OPLUS_SCREENSHOT})
     @XposedHooker
-    private static class ReturnNullHooker implements Hooker {
+    static class ContainsSecureLayersHooker implements Hooker {
         @BeforeInvocation
         public static void before(@NonNull BeforeHookCallback callback) {
+            var config = Config.current();
+            if (!config.enabled(HookStats.CONTAINS_SECURE_LAYERS)) return;
+            var start = HookStats.start();
+            // No uid_policy here, as for the ScreenCapture override: the buffer holds the layers of every
+            // window on the display and lives in the process taking the screenshot, so no window owner is
+            // known. The policy applies where the window is, isSecureLocked and secure_index
+            callback.returnAndSkip(false);
+            HookUsage.mark(callback.getMember());
+            HookStats.record(HookStats.CONTAINS_SECURE_LAYERS, HookStats.CONTAINS_SECURE_LAYERS_RETURN_FALSE, start);
+        }
+    }
+
+    // Screenshot detection (U~Baklava)
+    @HookTarget(className = "com.android.server.wm.ActivityTaskManagerService", method = "registerScreenCaptureObserver",
+            parameterTypes = {"android.os.IBinder", "android.app.IScreenCaptureObserver"},
+            minSdk = Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
+    @XposedHooker
+    static class ReturnNullHooker implements Hooker {
+        @BeforeInvocation
+        public static void before(@NonNull BeforeHookCallback callback) {
+            if (!Config.current().enabled(HookStats.CONSTANT) || LatencyWatchdog.isOff(callback.getMember())) return;
+            var start = HookStats.start();
             callback.returnAndSkip(null);
+            HookStats.recordMember(callback.getMember());
+            HookUsage.mark(callback.getMember());
+            HookStats.record(HookStats.CONSTANT, HookStats.CONSTANT_RETURN, start, callback.getMember());
         }
     }
 
+    // dumpsys window disableflagsecure [stats on|off|reset] [trace on|off|export] [policy <spec>]
+    // [recorders <spec>] [set <key> <value>] [unset <key>] [hook <name> on|off] [watchdog off|disable|unhook] [prune reset] [session <uid> keep|secure|default]
+    @HookTarget(className = "com.android.server.wm.WindowManagerService", method = "dump",
+            parameterTypes = {"java.io.FileDescriptor", "java.io.PrintWriter", "java.lang.String[]"})
     @XposedHooker
-    private static class ToastHooker implements Hooker {
+    static class DumpHooker implements Hooker {
         @BeforeInvocation
         public static void before(@NonNull BeforeHookCallback callback) {
+            var args = (String[]) callback.getArgs()[2];
+            if (args == null || args.length == 0 || !DUMP_COMMAND.equals(args[0])) return;
+            // Skipping dump also skips its DUMP permission check, only adb and system_server get the commands
+            var uid = Binder.getCallingUid();
+            if (uid != Process.ROOT_UID && uid != Process.SHELL_UID && uid != Process.SYSTEM_UID) return;
+            ((DisableFlagSecure) module).dump((PrintWriter) callback.getArgs()[1], args);
+            callback.returnAndSkip(null);
+        }
+    }
+
+    @XposedHooker
+    static class ToastHooker implements Hooker {
+        private static final AtomicBoolean fired = new AtomicBoolean();
+
+        @BeforeInvocation
+        public static void before(@NonNull BeforeHookCallback callback) {
+            // Once per process, then the resumes of this app no longer go through the module
+            if (!fired.compareAndSet(false, true)) return;
+            var unhooker = guard;
+            if (unhooker != null) {
+                // Not on the hooked method's own stack
+                var thread = new Thread(unhooker::unhook, "DisableFlagSecure-guard");
+                thread.setDaemon(true);
+                thread.start();
+            }
             var activity = (Activity) callback.getThisObject();
             new AlertDialog.Builder(activity)
                     .setTitle("Enable Screenshot")
@@ -0,0 +1,148 @@
+package io.github.lsposed.disableflagsecure;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Resolution results that only depend on the ROM build: the classes, overloads and fields
+ * that resolved on the previous boot. Reused while Build.FINGERPRINT stays the same, so
+ * later boots skip the probing.
+ */
+final class HookCache {
+    private static final String VERSION = "1";
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+
+    private final File file;
+    private final Properties properties = new Properties();
+    private boolean dirty = false;
+
+    /**
+     * @param file null for a cache that lives only in memory
+     */
+    HookCache(File file, String fingerprint) {
+        this.file = file;
+        if (file != null && file.isFile()) {
+            try (var in = new FileInputStream(file)) {
+                properties.load(in);
+            } catch (IOException ignored) {
+                properties.clear();
+            }
+        }
+        if (!VERSION.equals(properties.getProperty(KEY_VERSION)) ||
+                !fingerprint.equals(properties.getProperty(KEY_FINGERPRINT))) {
+            properties.clear();
+            properties.setProperty(KEY_VERSION, VERSION);
+            properties.setProperty(KEY_FINGERPRINT, fingerprint);
+            dirty = true;
+        }
+    }
+
+    synchronized String get(String key) {
+        return properties.getProperty(key);
+    }
+
+    synchronized void put(String key, String value) {
+        if (!value.equals(properties.setProperty(key, value))) {
+            dirty = true;
+        }
+    }
+
+    synchronized void remove(String key) {
+        if (properties.remove(key) != null) {
+            dirty = true;
+        }
+    }
+
+    synchronized void removeAll(String prefix) {
+        if (properties.keySet().removeIf(key -> ((String) key).startsWith(prefix))) {
+            dirty = true;
+        }
+    }
+
+    synchronized void save() throws IOException {
+        if (file == null || !dirty) return;
+        var tmp = new File(file.getPath() + ".tmp");
+        try (var out = new FileOutputStream(tmp)) {
+            properties.store(out, null);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("rename " + tmp + " failed");
+        }
+        dirty = false;
+    }
+
+    static String signatures(List<Method> methods) {
+        var sb = new StringBuilder();
+        for (var method : methods) {
+            if (sb.length() > 0) sb.append('|');
+            sb.append(method.getName()).append('(');
+            for (var type : method.getParameterTypes()) {
+                sb.append(DexScanner.descriptor(type));
+            }
+            sb.append(')');
+        }
+        return sb.toString();
+    }
+
+    static List<Method> resolve(Class<?> clazz, String signatures) throws ReflectiveOperationException {
+        var methods = new ArrayList<Method>();
+        if (signatures.isEmpty()) return methods;
+        for (var signature : signatures.split("\\|")) {
+            int open = signature.indexOf('(');
+            var name = signature.substring(0, open);
+            var types = parameterTypes(signature.substring(open + 1, signature.length() - 1));
+            var loader = clazz.getClassLoader();
+            var parameters = new Class<?>[types.length];
+            for (int i = 0; i < types.length; i++) {
+                parameters[i] = classOf(types[i], loader);
+            }
+            methods.add(clazz.getDeclaredMethod(name, parameters));
+        }
+        return methods;
+    }
+
+    static String[] parameterTypes(String descriptors) {
+        var types = new ArrayList<String>();
+        int start = 0;
+        while (start < descriptors.length()) {
+            int end = start;
+            while (descriptors.charAt(end) == '[') end++;
+            end = descriptors.charAt(end) == 'L' ? descriptors.indexOf(';', end) + 1 : end + 1;
+            types.add(descriptors.substring(start, end));
+            start = end;
+        }
+        return types.toArray(new String[0]);
+    }
+
+    private static Class<?> classOf(String descriptor, ClassLoader loader) throws ClassNotFoundException {
+        switch (descriptor) {
+            case "I":
+                return int.class;
+            case "Z":
+                return boolean.class;
+            case "J":
+                return long.class;
+            case "F":
+                return float.class;
+            case "D":
+                return double.class;
+            case "B":
+                return byte.class;
+            case "C":
+                return char.class;
+            case "S":
+                return short.class;
+        }
+        var name = descriptor.charAt(0) == '[' ?
+                descriptor.replace('/', '.') :
+                DexScanner.binaryName(descriptor);
+        return Class.forName(name, false, loader);
+    }
+}
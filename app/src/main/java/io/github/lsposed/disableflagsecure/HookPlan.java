@@ -0,0 +1,60 @@
+package io.github.lsposed.disableflagsecure;
+
+import android.os.Build;
+
+import java.util.Arrays;
+
+/**
+ * What an app process in scope installs, decided once from its package name and the SDK, so
+ * onPackageLoaded only runs the routines of its role and loads no class it does not hook.
+ */
+final class HookPlan {
+    static final int ROLE_SYSTEMUI = 0;
+    // MIUI / Oplus / Flyme screenshot and capture services
+    static final int ROLE_SCREENSHOT = 1;
+    // Scoped by mistake, only gets the one-shot warning
+    static final int ROLE_MISCONFIGURED = 2;
+
+    final int role;
+    // Index into HookTable.PROCESSES, -1 if the package has no @HookTarget rows
+    final int table;
+    // ScreenCapture natives in the app process: S~T everywhere, S~V on Oplus
+    final boolean screenCapture;
+
+    private HookPlan(int role, int table, boolean screenCapture) {
+        this.role = role;
+        this.table = table;
+        this.screenCapture = screenCapture;
+    }
+
+    static HookPlan of(String packageName, int sdk) {
+        var role = role(packageName);
+        if (role == ROLE_MISCONFIGURED) return new HookPlan(role, -1, false);
+        var oplus = DisableFlagSecure.OPLUS_APPPLATFORM.equals(packageName) ||
+                DisableFlagSecure.OPLUS_SCREENSHOT.equals(packageName);
+        return new HookPlan(role, table(packageName),
+                oplus || sdk < Build.VERSION_CODES.UPSIDE_DOWN_CAKE);
+    }
+
+    /**
+     * Needs no config, the misconfigured role decides how much of it to load.
+     */
+    static int role(String packageName) {
+        switch (packageName) {
+            case DisableFlagSecure.SYSTEMUI:
+                return ROLE_SYSTEMUI;
+            case DisableFlagSecure.OPLUS_SCREENSHOT:
+            case DisableFlagSecure.FLYME_SYSTEMUIEX:
+            case DisableFlagSecure.OPLUS_APPPLATFORM:
+            case DisableFlagSecure.MIUI_SCREENSHOT:
+                return ROLE_SCREENSHOT;
+            default:
+                return ROLE_MISCONFIGURED;
+        }
+    }
+
+    static int table(String process) {
+        var index = Arrays.binarySearch(HookTable.PROCESSES, process);
+        return index < 0 ? -1 : index;
+    }
+}
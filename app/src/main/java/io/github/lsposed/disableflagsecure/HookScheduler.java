@@ -0,0 +1,116 @@
+package io.github.lsposed.disableflagsecure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Installs critical hooks on the loading thread and hands the rest to a small worker pool.
+ * Actions added with {@link #whenReady(Runnable)} run once every deferred task is done.
+ */
+final class HookScheduler {
+    interface Task {
+        void run() throws Throwable;
+    }
+
+    interface ErrorHandler {
+        void onError(String name, Throwable t);
+    }
+
+    private final ExecutorService pool;
+    private final ErrorHandler errorHandler;
+    private final List<Runnable> readyActions = new ArrayList<>();
+    // The loading thread is the initial party, every deferred task registers one more
+    private final Phaser barrier = new Phaser(1) {
+        @Override
+        protected boolean onAdvance(int phase, int registeredParties) {
+            if (pool != null) pool.shutdown();
+            readyActions.forEach(Runnable::run);
+            return true;
+        }
+    };
+
+    private final long start = System.nanoTime();
+    private final AtomicLong criticalNanos = new AtomicLong();
+    private final AtomicLong deferredNanos = new AtomicLong();
+    private final AtomicInteger deferredCount = new AtomicInteger();
+    private volatile long bootPathNanos;
+
+    /**
+     * @param workers 0 to run every task inline
+     */
+    HookScheduler(int workers, ErrorHandler errorHandler) {
+        this.errorHandler = errorHandler;
+        if (workers <= 0) {
+            pool = null;
+        } else {
+            var id = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(workers, r -> {
+                var thread = new Thread(r, "DisableFlagSecure-" + id.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    static int defaultWorkers() {
+        return Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    void critical(String name, Task task) {
+        criticalNanos.addAndGet(run(name, task));
+    }
+
+    void defer(String name, Task task) {
+        if (pool == null) {
+            critical(name, task);
+            return;
+        }
+        barrier.register();
+        pool.execute(() -> {
+            try {
+                deferredNanos.addAndGet(run(name, task));
+                deferredCount.incrementAndGet();
+            } finally {
+                barrier.arriveAndDeregister();
+            }
+        });
+    }
+
+    /**
+     * Must be called before {@link #seal()}.
+     */
+    void whenReady(Runnable action) {
+        readyActions.add(action);
+    }
+
+    /**
+     * Ends the synchronous phase; the loading thread returns without waiting for deferred tasks.
+     */
+    void seal() {
+        bootPathNanos = System.nanoTime() - start;
+        barrier.arriveAndDeregister();
+    }
+
+    String report() {
+        return String.format("boot path %.2fms (critical %.2fms), deferred %d tasks taking %.2fms off the boot path",
+                bootPathNanos / 1e6, criticalNanos.get() / 1e6, deferredCount.get(), deferredNanos.get() / 1e6);
+    }
+
+    private long run(String name, Task task) {
+        var trace = TraceBuffer.name(name);
+        var begin = TraceBuffer.begin();
+        try {
+            task.run();
+        } catch (Throwable t) {
+            errorHandler.onError(name, t);
+        }
+        var end = System.nanoTime();
+        TraceBuffer.span(trace, begin, end);
+        return end - begin;
+    }
+}
@@ -0,0 +1,230 @@
+package io.github.lsposed.disableflagsecure;
+
+import java.io.PrintWriter;
+import java.lang.reflect.Member;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Invocation counters and latency histograms of the hookers. Slots are striped by thread and
+ * never allocate; latency is sampled once every {@link #SAMPLE_INTERVAL} calls, and sampled calls
+ * also go to {@link TraceBuffer} while it is sampling and to {@link LatencyWatchdog} while it is
+ * watching. The sample counter is striped like the slots, so hookers on different threads do not
+ * bounce one cache line. When all three are off every call is three volatile reads.
+ */
+final class HookStats {
+    // Hookers with a latency histogram
+    static final int SECURE_LOCKED = 0;
+    static final int CREATE_DISPLAY = 1;
+    static final int CREATE_VIRTUAL_DISPLAY_LOCKED = 2;
+    static final int SCREEN_CAPTURE = 3;
+    static final int CHECK_PERMISSION = 4;
+    static final int CONSTANT = 5;
+    static final int CONTAINS_SECURE_LAYERS = 6;
+    static final int SECURE_WINDOW = 7;
+    private static final String[] HOOKS = {
+            "SecureLocked", "CreateDisplay", "CreateVirtualDisplayLocked",
+            "ScreenCapture", "CheckPermission", "Return{True,False,Null}", "ContainsSecureLayers", "SecureWindow"};
+    private static final int[] TRACE_NAMES = new int[HOOKS.length];
+
+    static {
+        for (int i = 0; i < HOOKS.length; i++) {
+            TRACE_NAMES[i] = TraceBuffer.name(HOOKS[i] + "Hooker");
+        }
+    }
+
+    // Decision outcomes
+    static final int SECURE_LOCKED_CALL_SITE = 0;
+    static final int SECURE_LOCKED_RETURN_FALSE = 1;
+    static final int CREATE_DISPLAY_CALL_SITE = 2;
+    static final int CREATE_DISPLAY_SECURE = 3;
+    static final int VIRTUAL_DISPLAY_APP = 4;
+    static final int VIRTUAL_DISPLAY_SECURE = 5;
+    static final int VIRTUAL_DISPLAY_FLAG_NOT_FOUND = 6;
+    static final int SCREEN_CAPTURE_OVERRIDE = 7;
+    static final int SCREEN_CAPTURE_FAILED = 8;
+    static final int SCREEN_CAPTURE_UNRESOLVED = 9;
+    static final int CHECK_PERMISSION_REWRITE = 10;
+    static final int CHECK_PERMISSION_PASS = 11;
+    static final int CONSTANT_RETURN = 12;
+    static final int SECURE_LOCKED_NOT_ALLOWED = 13;
+    static final int CONTAINS_SECURE_LAYERS_RETURN_FALSE = 14;
+    static final int VIRTUAL_DISPLAY_NOT_ALLOWED = 15;
+    static final int SECURE_WINDOW_CLEARED = 16;
+    static final int SECURE_WINDOW_NOT_ALLOWED = 17;
+    private static final String[] OUTCOMES = {
+            "SecureLocked skipped (call site)", "SecureLocked returned false",
+            "CreateDisplay skipped (call site)", "CreateDisplay forced secure",
+            "CreateVirtualDisplayLocked skipped (app without projection)",
+            "CreateVirtualDisplayLocked forced secure", "CreateVirtualDisplayLocked flag not found",
+            "ScreenCapture overridden", "ScreenCapture failed", "ScreenCapture unresolved",
+            "CheckPermission rewritten", "CheckPermission passed through",
+            "Return{True,False,Null} returned", "SecureLocked kept (UID not allowed)",
+            "ContainsSecureLayers returned false",
+            "CreateVirtualDisplayLocked kept (recorder not allowed)", "SecureWindow cleared FLAG_SECURE",
+            "SecureWindow kept (UID not allowed)"};
+
+    static final long NOT_SAMPLED = Long.MIN_VALUE;
+    static final int SAMPLE_INTERVAL = 64;
+
+    static final int MAX_MEMBERS = 32;
+    // Bucket i counts latencies in [2^(i-1), 2^i) ns
+    private static final int BUCKETS = 32;
+
+    private static final int MEMBER_BASE = OUTCOMES.length;
+    private static final int HISTOGRAM_BASE = MEMBER_BASE + MAX_MEMBERS;
+    private static final int SLOTS = HISTOGRAM_BASE + HOOKS.length * BUCKETS;
+    // Stripe stride padded to whole cache lines, plus one spare line against false sharing
+    private static final int STRIDE = ((SLOTS + 7) & ~7) + 8;
+    private static final int STRIPES = 8;
+
+    private static final AtomicLongArray slots = new AtomicLongArray(STRIDE * STRIPES);
+    private static volatile Member[] members = new Member[0];
+
+    private static volatile boolean enabled = false;
+    private static volatile boolean watched = true;
+    // One counter per stripe, a cache line apart; racy within a stripe on purpose, only spreads samples
+    private static final int TICK_STRIDE = 16;
+    private static final int[] ticks = new int[STRIPES * TICK_STRIDE];
+
+    private HookStats() {
+    }
+
+    static void setEnabled(boolean enabled) {
+        HookStats.enabled = enabled;
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    static void setWatched(boolean watched) {
+        HookStats.watched = watched;
+    }
+
+    /**
+     * Assigns a slot to a member hooked by a constant hooker, at install time.
+     */
+    static synchronized void register(Member member) {
+        var current = members;
+        if (current.length >= MAX_MEMBERS) return;
+        for (var m : current) {
+            if (m.equals(member)) return;
+        }
+        var next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = member;
+        members = next;
+    }
+
+    static long start() {
+        if (!enabled && !watched && !TraceBuffer.isSampling()) return NOT_SAMPLED;
+        var tick = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * TICK_STRIDE;
+        if ((++ticks[tick] & (SAMPLE_INTERVAL - 1)) != 0) return NOT_SAMPLED;
+        return System.nanoTime();
+    }
+
+    static void record(int hook, int outcome, long start) {
+        record(hook, outcome, start, null);
+    }
+
+    /**
+     * @param member the hooked method of a constant hooker, watched on its own
+     */
+    static void record(int hook, int outcome, long start, Member member) {
+        long end = start == NOT_SAMPLED ? 0 : System.nanoTime();
+        if (enabled) {
+            int base = stripe();
+            slots.getAndIncrement(base + outcome);
+            if (start != NOT_SAMPLED) {
+                slots.getAndIncrement(base + HISTOGRAM_BASE + hook * BUCKETS + bucket(end - start));
+            }
+        }
+        if (start != NOT_SAMPLED && TraceBuffer.isSampling()) {
+            TraceBuffer.span(TRACE_NAMES[hook], start, end);
+        }
+        if (start != NOT_SAMPLED && watched) {
+            LatencyWatchdog.sample(hook, member, end - start);
+        }
+    }
+
+    /**
+     * The slot {@link #register} gave the member, -1 for none.
+     */
+    static int member(Member member) {
+        var current = members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == member) return i;
+        }
+        return -1;
+    }
+
+    static void recordMember(Member member) {
+        if (!enabled) return;
+        var current = members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == member) {
+                slots.getAndIncrement(stripe() + MEMBER_BASE + i);
+                return;
+            }
+        }
+    }
+
+    static void reset() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, 0);
+        }
+    }
+
+    static void dump(PrintWriter pw) {
+        pw.println("Hook stats (" + (enabled ? "enabled" : "disabled") + ", latency sampled 1/" + SAMPLE_INTERVAL + ")");
+        for (int i = 0; i < OUTCOMES.length; i++) {
+            var count = sum(i);
+            if (count != 0) pw.println("  " + OUTCOMES[i] + ": " + count);
+        }
+        var current = members;
+        for (int i = 0; i < current.length; i++) {
+            var count = sum(MEMBER_BASE + i);
+            if (count != 0) pw.println("  " + current[i] + ": " + count);
+        }
+        var histogram = new long[BUCKETS];
+        for (int hook = 0; hook < HOOKS.length; hook++) {
+            long total = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                histogram[b] = sum(HISTOGRAM_BASE + hook * BUCKETS + b);
+                total += histogram[b];
+            }
+            if (total == 0) continue;
+            pw.println("  " + HOOKS[hook] + " latency: samples=" + total +
+                    " p50<" + percentile(histogram, total, 0.5) + "ns" +
+                    " p99<" + percentile(histogram, total, 0.99) + "ns" +
+                    " max<" + percentile(histogram, total, 1) + "ns");
+        }
+    }
+
+    private static int stripe() {
+        return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIDE;
+    }
+
+    private static int bucket(long nanos) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(nanos, 0)));
+    }
+
+    private static long sum(int slot) {
+        long sum = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            sum += slots.get(stripe * STRIDE + slot);
+        }
+        return sum;
+    }
+
+    // Upper bound of the bucket holding the given quantile
+    private static long percentile(long[] histogram, long total, double quantile) {
+        long threshold = (long) Math.ceil(total * quantile);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += histogram[b];
+            if (seen >= threshold && histogram[b] != 0) return 1L << b;
+        }
+        return 1L << (BUCKETS - 1);
+    }
+}
@@ -0,0 +1,138 @@
+package io.github.lsposed.disableflagsecure;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Which installed hooks changed behavior on this ROM build, for the prune setting. The deciding
+ * hookers {@link #mark} the overload they acted on, and the overloads are kept in the
+ * {@link HookCache} of the build as {@code usage.<class>#<method>}, empty for a row installed while
+ * learning and never marked. With pruning on, once the build learned for {@link #LEARN_BOOTS} boots,
+ * later boots do not hook a row left empty nor the overloads never marked of a row that had another
+ * overload marked, and keep marking the rest. A row first installed after learning has no entry and
+ * is always hooked. Rows that only act on rare paths, e.g. casts, belong in prune_keep. A new build
+ * learns again.
+ */
+final class HookUsage {
+    private static final String KEY = "usage.";
+    // Boots of this build that learned
+    private static final String KEY_LEARNED = "usage";
+    // One boot may not exercise a hook, e.g. nothing was cast
+    static final int LEARN_BOOTS = 3;
+
+    private static HookCache cache;
+    private static volatile boolean learning;
+    private static boolean pruning;
+    private static int boots;
+
+    // Copy on write, registered at install while learning
+    private static volatile Method[] methods = new Method[0];
+    private static String[] rows = new String[0];
+    private static volatile boolean[] marked = new boolean[0];
+
+    private HookUsage() {
+    }
+
+    static synchronized void start(HookCache cache, int mode) {
+        HookUsage.cache = cache;
+        boots = learnedBoots(cache.get(KEY_LEARNED));
+        // Pruning without enough learned for this build learns first
+        pruning = mode == Config.PRUNE_ON && boots >= LEARN_BOOTS;
+        learning = mode != Config.PRUNE_OFF;
+        if (learning && boots < LEARN_BOOTS) cache.put(KEY_LEARNED, String.valueOf(++boots));
+    }
+
+    // Learned and never used, before the class is loaded
+    static boolean prunes(String row) {
+        return pruning && "".equals(cache.get(KEY + row));
+    }
+
+    static boolean prunes(String row, Method method) {
+        if (!pruning) return false;
+        var used = cache.get(KEY + row);
+        return used != null && !Arrays.asList(used.split("\\|")).contains(signature(method));
+    }
+
+    static synchronized void register(String row, Method method) {
+        if (!learning) return;
+        // Never used until marked, saved with the cache once the boot is ready
+        if (!pruning && cache.get(KEY + row) == null) cache.put(KEY + row, "");
+        var length = methods.length;
+        rows = Arrays.copyOf(rows, length + 1);
+        rows[length] = row;
+        marked = Arrays.copyOf(marked, length + 1);
+        var next = Arrays.copyOf(methods, length + 1);
+        next[length] = method;
+        methods = next;
+    }
+
+    /**
+     * The hooker changed the outcome of the call. Free unless learning.
+     */
+    static void mark(Member member) {
+        if (!learning) return;
+        var current = methods;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == member || current[i].equals(member)) {
+                if (!marked[i]) markSlot(i);
+                return;
+            }
+        }
+    }
+
+    static synchronized void reset() throws IOException {
+        if (cache == null) return;
+        cache.removeAll(KEY_LEARNED);
+        cache.save();
+    }
+
+    static void dump(PrintWriter pw) {
+        if (cache == null) return;
+        pw.println("Hook usage: " + (pruning ? "pruning unused hooks" :
+                learning ? "learning, boot " + boots + " of " + LEARN_BOOTS : "off"));
+        var current = methods;
+        var used = marked;
+        for (int i = 0; i < current.length; i++) {
+            if (used[i]) pw.println("  used " + current[i]);
+        }
+    }
+
+    private static synchronized void markSlot(int i) {
+        if (marked[i]) return;
+        var next = marked.clone();
+        next[i] = true;
+        marked = next;
+        var key = KEY + rows[i];
+        var signature = signature(methods[i]);
+        var used = cache.get(key);
+        if (used != null && Arrays.asList(used.split("\\|")).contains(signature)) return;
+        cache.put(key, used == null || used.isEmpty() ? signature : used + "|" + signature);
+        // Once per overload and boot, off the hooked call
+        var thread = new Thread(() -> {
+            try {
+                cache.save();
+            } catch (Throwable t) {
+                DiagnosticLog.log(DiagnosticLog.SAVE_CACHE_FAILED, t);
+            }
+        }, "DisableFlagSecure-usage");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static int learnedBoots(String value) {
+        if (value == null) return 0;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String signature(Method method) {
+        return HookCache.signatures(List.of(method));
+    }
+}
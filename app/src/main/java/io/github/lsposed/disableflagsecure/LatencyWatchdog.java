@@ -0,0 +1,191 @@
+package io.github.lsposed.disableflagsecure;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.lang.reflect.Member;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import io.github.libxposed.api.XposedInterface.MethodUnhooker;
+
+/**
+ * Checks the latency samples of {@link HookStats} against the budgets of {@link Config}. A hook
+ * over budget for {@link #STRIKES} samples in a row is switched off at once and, in
+ * {@link Config#WATCHDOG_UNHOOK} mode, unhooked off the calling thread; losing one bypass is
+ * cheaper than slowing down every frame of system_server. Off by default and without budgets, both
+ * are opt-in. The constant hookers share one hook ID but are judged per hooked method, so one slow
+ * method only takes itself out.
+ */
+final class LatencyWatchdog {
+    // Consecutive sampled calls over budget, about 512 calls at the HookStats sample interval
+    static final int STRIKES = 8;
+
+    private static final int ARMED = 0;
+    private static final int DISABLED = 1;
+    private static final int UNHOOKED = 2;
+
+    private static final int HOOKS = Config.HOOKS.length;
+    // Hook IDs, then the HookStats member slots of the constant hookers
+    private static final int SLOTS = HOOKS + HookStats.MAX_MEMBERS;
+    private static final AtomicIntegerArray strikes = new AtomicIntegerArray(SLOTS);
+    private static final AtomicIntegerArray states = new AtomicIntegerArray(SLOTS);
+    private static final List<List<MethodUnhooker<?>>> unhookers = new ArrayList<>(HOOKS);
+    private static final String[] reasons = new String[SLOTS];
+    // Constant hooked methods switched off, copy on write, read on every constant hooker call
+    private static volatile Member[] off = new Member[0];
+
+    static {
+        for (int i = 0; i < HOOKS; i++) {
+            unhookers.add(new ArrayList<>());
+        }
+    }
+
+    private LatencyWatchdog() {
+    }
+
+    static void register(int hook, MethodUnhooker<?> unhooker) {
+        if (hook < 0 || unhooker == null) return;
+        synchronized (unhookers.get(hook)) {
+            unhookers.get(hook).add(unhooker);
+        }
+    }
+
+    /**
+     * @param member the hooked method of a constant hooker, null for the other hooks
+     */
+    static void sample(int hook, Member member, long nanos) {
+        var config = Config.current();
+        if (config.watchdog == Config.WATCHDOG_OFF) return;
+        var budget = config.budgetNanos(hook);
+        if (budget <= 0) return;
+        var slot = hook;
+        if (member != null) {
+            var index = HookStats.member(member);
+            // Beyond the member slots, not watched
+            if (index < 0) return;
+            slot = HOOKS + index;
+        }
+        if (nanos <= budget) {
+            if (strikes.get(slot) != 0) strikes.set(slot, 0);
+            return;
+        }
+        if (strikes.incrementAndGet(slot) < STRIKES) return;
+        // Once per slot, whichever thread got here first
+        var unhook = config.watchdog == Config.WATCHDOG_UNHOOK;
+        if (!states.compareAndSet(slot, ARMED, unhook ? UNHOOKED : DISABLED)) return;
+        trip(slot, hook, member, unhook, nanos, budget);
+    }
+
+    /**
+     * The constant hooked method was switched off by the watchdog.
+     */
+    static boolean isOff(Member member) {
+        var current = off;
+        for (var m : current) {
+            if (m == member) return true;
+        }
+        return false;
+    }
+
+    private static void trip(int slot, int hook, Member member, boolean unhook, long nanos, long budget) {
+        // The hooker becomes a single read from here on, also for callers already inside it
+        if (member == null) {
+            Config.update(config -> config.withHook(hook, false));
+        } else {
+            switchOff(member);
+        }
+        var reason = (member == null ? Config.HOOKS[hook] : member.toString()) + " over its " + budget / 1000 +
+                "us budget for " + STRIKES + " samples in a row, last " + nanos / 1000 + "us; " +
+                (unhook ? "unhooked" : "disabled") + " at " + SystemClock.elapsedRealtimeNanos() / 1_000_000 +
+                "ms since boot";
+        synchronized (reasons) {
+            reasons[slot] = reason;
+        }
+        if (!unhook) {
+            DiagnosticLog.log(DiagnosticLog.WATCHDOG_TRIPPED, reason);
+            return;
+        }
+        // Not on the hooked method's own stack
+        var thread = new Thread(() -> {
+            var current = new ArrayList<MethodUnhooker<?>>();
+            synchronized (unhookers.get(hook)) {
+                var it = unhookers.get(hook).iterator();
+                while (it.hasNext()) {
+                    var unhooker = it.next();
+                    if (member != null && !member.equals(unhooker.getOrigin())) continue;
+                    current.add(unhooker);
+                    it.remove();
+                }
+            }
+            for (var unhooker : current) {
+                try {
+                    unhooker.unhook();
+                } catch (Throwable t) {
+                    DiagnosticLog.log(DiagnosticLog.UNHOOK_FAILED, unhooker.getOrigin(), t);
+                }
+            }
+            DiagnosticLog.log(DiagnosticLog.WATCHDOG_TRIPPED, reason + " (" + current.size() + " methods)");
+        }, "DisableFlagSecure-watchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static synchronized void switchOff(Member member) {
+        var next = Arrays.copyOf(off, off.length + 1);
+        next[off.length] = member;
+        off = next;
+    }
+
+    /**
+     * Keeps the hooks the watchdog switched off off in a freshly compiled config.
+     */
+    static Config mask(Config config) {
+        for (int i = 0; i < HOOKS; i++) {
+            if (states.get(i) != ARMED) config = config.withHook(i, false);
+        }
+        return config;
+    }
+
+    /**
+     * Lets a hook the watchdog disabled be switched back on, for the constant hook also its disabled
+     * methods. An unhooked one stays off until reboot.
+     */
+    static synchronized boolean rearm(int hook) {
+        if (states.get(hook) == UNHOOKED) return false;
+        strikes.set(hook, 0);
+        states.set(hook, ARMED);
+        if (hook == HookStats.CONSTANT) {
+            var still = new ArrayList<Member>();
+            for (var member : off) {
+                var slot = HOOKS + HookStats.member(member);
+                if (states.get(slot) == UNHOOKED) {
+                    still.add(member);
+                } else {
+                    strikes.set(slot, 0);
+                    states.set(slot, ARMED);
+                }
+            }
+            off = still.toArray(new Member[0]);
+        }
+        return true;
+    }
+
+    static void dump(PrintWriter pw) {
+        var config = Config.current();
+        pw.println("Latency watchdog (" + Config.WATCHDOG_MODES[config.watchdog] + ", " + STRIKES +
+                " samples in a row over budget)");
+        synchronized (reasons) {
+            for (int i = 0; i < HOOKS; i++) {
+                var budget = config.budgetNanos(i);
+                pw.println("  " + Config.HOOKS[i] + ": budget " + (budget > 0 ? budget / 1000 + "us" : "none") +
+                        (reasons[i] != null ? ", tripped: " + reasons[i] : ""));
+            }
+            for (int i = HOOKS; i < SLOTS; i++) {
+                if (reasons[i] != null) pw.println("    tripped: " + reasons[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package io.github.lsposed.disableflagsecure;
+
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Settings set with dumpsys in system_server, ahead of the remote preferences of the module, which
+ * nothing on the device writes without a settings app. Kept in a properties file next to the
+ * {@link HookCache} and typed by {@link Config#type}, so the keys only read at boot apply from the
+ * next one. App processes only see the remote preferences.
+ */
+final class LocalSettings implements SharedPreferences {
+    private final File file;
+    // Copy on write, typed
+    private volatile Map<String, Object> values = Map.of();
+    private volatile SharedPreferences base;
+
+    /**
+     * @param file null for settings that live only in memory
+     */
+    LocalSettings(File file) {
+        this.file = file;
+        if (file == null || !file.isFile()) return;
+        var properties = new Properties();
+        try (var in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            DiagnosticLog.log(DiagnosticLog.INFO, "local settings not read", e);
+            return;
+        }
+        var loaded = new TreeMap<String, Object>();
+        for (var key : properties.stringPropertyNames()) {
+            try {
+                loaded.put(key, parse(key, properties.getProperty(key)));
+            } catch (IllegalArgumentException e) {
+                // A key a later version dropped
+                DiagnosticLog.log(DiagnosticLog.INFO, "local setting " + key + " dropped", e);
+            }
+        }
+        values = loaded;
+    }
+
+    /**
+     * @param base the remote preferences, null if they could not be read
+     */
+    LocalSettings over(SharedPreferences base) {
+        this.base = base;
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException for an unknown key, or a value that does not parse or compile
+     * @throws IOException              if the file was not written, the value still applies until reboot
+     */
+    synchronized void set(String key, String value) throws IOException {
+        var next = new TreeMap<>(values);
+        next.put(key, parse(key, value));
+        replace(next);
+    }
+
+    synchronized void unset(String key) throws IOException {
+        if (!values.containsKey(key)) return;
+        var next = new TreeMap<>(values);
+        next.remove(key);
+        replace(next);
+    }
+
+    Map<String, Object> values() {
+        return values;
+    }
+
+    private void replace(Map<String, Object> next) throws IOException {
+        var previous = values;
+        values = next;
+        try {
+            Config.compile(this);
+        } catch (RuntimeException e) {
+            values = previous;
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        if (file == null) return;
+        var properties = new Properties();
+        for (var entry : next.entrySet()) {
+            properties.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        var tmp = new File(file.getPath() + ".tmp");
+        try (var out = new FileOutputStream(tmp)) {
+            properties.store(out, null);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("rename " + tmp + " failed");
+        }
+    }
+
+    private static Object parse(String key, String value) {
+        var type = Config.type(key);
+        if (type == null) throw new IllegalArgumentException("unknown key " + key);
+        if (type == Boolean.class) {
+            if (!"true".equals(value) && !"false".equals(value)) {
+                throw new IllegalArgumentException(key + " is true or false");
+            }
+            return Boolean.valueOf(value);
+        }
+        if (type == Integer.class) return Integer.valueOf(value);
+        return value;
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        var all = new HashMap<String, Object>();
+        var preferences = base;
+        if (preferences != null) all.putAll(preferences.getAll());
+        all.putAll(values);
+        return all;
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        var value = values.get(key);
+        if (value != null) return (String) value;
+        var preferences = base;
+        return preferences == null ? defValue : preferences.getString(key, defValue);
+    }
+
+    @Override
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        var preferences = base;
+        return preferences == null ? defValues : preferences.getStringSet(key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        var value = values.get(key);
+        if (value != null) return (Integer) value;
+        var preferences = base;
+        return preferences == null ? defValue : preferences.getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        var preferences = base;
+        return preferences == null ? defValue : preferences.getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        var preferences = base;
+        return preferences == null ? defValue : preferences.getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        var value = values.get(key);
+        if (value != null) return (Boolean) value;
+        var preferences = base;
+        return preferences == null ? defValue : preferences.getBoolean(key, defValue);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        var preferences = base;
+        return values.containsKey(key) || preferences != null && preferences.contains(key);
+    }
+
+    @Override
+    public Editor edit() {
+        throw new UnsupportedOperationException("set with dumpsys window disableflagsecure set <key> <value>");
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        var preferences = base;
+        if (preferences != null) preferences.registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        var preferences = base;
+        if (preferences != null) preferences.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+}
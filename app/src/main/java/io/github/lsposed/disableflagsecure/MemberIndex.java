@@ -0,0 +1,33 @@
+package io.github.lsposed.disableflagsecure;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Name to declared methods of each class, so every class is scanned once per boot.
+ * Safe to use from the hook install workers.
+ */
+final class MemberIndex {
+    private final Map<Class<?>, Map<String, List<Method>>> methods = new ConcurrentHashMap<>();
+
+    List<Method> methods(Class<?> clazz, String name) {
+        var byName = methods.computeIfAbsent(clazz, MemberIndex::index);
+        return byName.getOrDefault(name, List.of());
+    }
+
+    void clear() {
+        methods.clear();
+    }
+
+    private static Map<String, List<Method>> index(Class<?> clazz) {
+        var byName = new HashMap<String, List<Method>>();
+        for (var method : clazz.getDeclaredMethods()) {
+            byName.computeIfAbsent(method.getName(), k -> new ArrayList<>()).add(method);
+        }
+        return byName;
+    }
+}
@@ -0,0 +1,203 @@
+package io.github.lsposed.disableflagsecure;
+
+import android.os.IInterface;
+import android.view.WindowManager;
+
+import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The secure_index mode: windows whose FLAG_SECURE was cleared, keyed by the binder of their
+ * IWindow client like WindowManagerService#mWindowMap. The decision is taken when a window is
+ * added or relaid out, so isSecureLocked is left alone; the surface call sites look the window up
+ * in O(1) and see the flag again, as they do with SecureLockedHooker, which is why their callers
+ * are deoptimized instead. Policy changes apply from the next relayout of a window. Once
+ * SecureWindowHooker stops deciding, by config or the watchdog, the index is dropped and the
+ * windows in it get the flag back, so no call site clears it for a decision nobody keeps.
+ */
+final class SecureWindows {
+    private static final int STRIPES = 16;
+    private static final List<HashMap<Object, Entry>> stripes = new ArrayList<>(STRIPES);
+    // Read under the stripe locks, so no window is indexed behind a drop
+    private static volatile boolean deciding = true;
+
+    // WindowState#mClient / WindowState#mAttrs / WindowStateAnimator#mWin / Session#mUid, set once the mode is on
+    private static volatile Field client;
+    private static Field attrs;
+    private static Field win;
+    private static Field sessionUid;
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.add(new HashMap<>());
+        }
+    }
+
+    // One window with FLAG_SECURE cleared, its WindowState known once a surface call site saw it
+    private static final class Entry {
+        final int uid;
+        Object window;
+
+        Entry(int uid) {
+            this.uid = uid;
+        }
+    }
+
+    private SecureWindows() {
+    }
+
+    static void bind(Field client, Field attrs, Field win, Field sessionUid) {
+        client.setAccessible(true);
+        attrs.setAccessible(true);
+        win.setAccessible(true);
+        sessionUid.setAccessible(true);
+        SecureWindows.attrs = attrs;
+        SecureWindows.win = win;
+        SecureWindows.sessionUid = sessionUid;
+        SecureWindows.client = client;
+    }
+
+    static boolean isActive() {
+        return client != null;
+    }
+
+    /**
+     * Decides for the layout params a window is added or relaid out with.
+     *
+     * @return HookStats outcome, -1 if the window does not ask for FLAG_SECURE
+     */
+    static int apply(Object token, WindowManager.LayoutParams params, int uid, UidPolicy policy) {
+        if ((params.flags & WindowManager.LayoutParams.FLAG_SECURE) == 0) {
+            // Cleared by the app itself
+            remove(token);
+            return -1;
+        }
+        if (!policy.allows(uid)) {
+            remove(token);
+            return HookStats.SECURE_WINDOW_NOT_ALLOWED;
+        }
+        var stripe = stripe(token);
+        synchronized (stripe) {
+            // A hooker that read the config before SecureWindowHooker was switched off
+            if (!deciding) return -1;
+            if (!stripe.containsKey(token)) stripe.put(token, new Entry(uid));
+        }
+        params.flags &= ~WindowManager.LayoutParams.FLAG_SECURE;
+        return HookStats.SECURE_WINDOW_CLEARED;
+    }
+
+    /**
+     * Follows the config as it is published; switching SecureWindowHooker off drops the index.
+     */
+    static void setDeciding(boolean deciding) {
+        if (SecureWindows.deciding == deciding) return;
+        SecureWindows.deciding = deciding;
+        if (deciding || !isActive()) return;
+        var windows = new ArrayList<>();
+        for (var stripe : stripes) {
+            synchronized (stripe) {
+                for (var entry : stripe.values()) {
+                    if (entry.window != null) windows.add(entry.window);
+                }
+                stripe.clear();
+            }
+        }
+        // Outside the WindowManager lock, the next surface or relayout of the window sees it
+        for (var window : windows) setFlag(window, true);
+    }
+
+    /**
+     * The UID owning the windows of a WindowManager Session, -1 if unknown.
+     */
+    static int ownerUid(Object session) {
+        try {
+            return isActive() && sessionUid.getDeclaringClass().isInstance(session) ? sessionUid.getInt(session) : -1;
+        } catch (IllegalAccessException e) {
+            return -1;
+        }
+    }
+
+    static void remove(Object token) {
+        var stripe = stripe(token);
+        synchronized (stripe) {
+            stripe.remove(token);
+        }
+    }
+
+    /**
+     * Gives a WindowState or WindowStateAnimator the flag back for a surface call site.
+     */
+    static void restore(Object window) {
+        set(window, true);
+    }
+
+    static void clear(Object window) {
+        set(window, false);
+    }
+
+    static void removeWindow(Object window) {
+        var token = token(window);
+        if (token != null) remove(token);
+    }
+
+    static void dump(PrintWriter pw) {
+        if (!isActive()) return;
+        var uids = new ArrayList<Integer>();
+        for (var stripe : stripes) {
+            synchronized (stripe) {
+                for (var entry : stripe.values()) uids.add(entry.uid);
+            }
+        }
+        pw.println("Secure window index: " + uids.size() + " windows with FLAG_SECURE cleared");
+        for (var uid : uids) {
+            pw.println("  uid " + uid);
+        }
+    }
+
+    private static void set(Object window, boolean secure) {
+        try {
+            if (win.getDeclaringClass().isInstance(window)) window = win.get(window);
+        } catch (IllegalAccessException e) {
+            return;
+        }
+        var token = token(window);
+        if (token == null) return;
+        var stripe = stripe(token);
+        synchronized (stripe) {
+            var entry = stripe.get(token);
+            if (entry == null) return;
+            entry.window = window;
+            // Under the stripe lock, a drop cannot restore the flag in between
+            setFlag(window, secure);
+        }
+    }
+
+    private static void setFlag(Object window, boolean secure) {
+        try {
+            var params = (WindowManager.LayoutParams) attrs.get(window);
+            if (secure) {
+                params.flags |= WindowManager.LayoutParams.FLAG_SECURE;
+            } else {
+                params.flags &= ~WindowManager.LayoutParams.FLAG_SECURE;
+            }
+        } catch (IllegalAccessException ignored) {
+        }
+    }
+
+    private static Object token(Object window) {
+        try {
+            var value = window == null ? null : client.get(window);
+            return value instanceof IInterface ? ((IInterface) value).asBinder() : null;
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static HashMap<Object, Entry> stripe(Object token) {
+        var h = token.hashCode();
+        return stripes.get((h ^ (h >>> 16)) & (STRIPES - 1));
+    }
+}
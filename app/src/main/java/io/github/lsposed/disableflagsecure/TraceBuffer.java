@@ -0,0 +1,129 @@
+package io.github.lsposed.disableflagsecure;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+/**
+ * Preallocated ring of spans with {@link System#nanoTime()} timestamps (CLOCK_MONOTONIC on
+ * Android). Hook installation is always recorded; hooker executions only while sampling is on.
+ * Exported by {@link TraceExporter}.
+ */
+final class TraceBuffer {
+    static final int CAPACITY = 1 << 13;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final long[] begins = new long[CAPACITY];
+    private static final long[] ends = new long[CAPACITY];
+    private static final int[] names = new int[CAPACITY];
+    private static final int[] tids = new int[CAPACITY];
+    private static final AtomicInteger next = new AtomicInteger();
+
+    private static final Map<String, Integer> ids = new HashMap<>();
+    private static volatile String[] table = new String[0];
+
+    private static IntSupplier tidSource = () -> (int) Thread.currentThread().getId();
+    private static volatile boolean sampling = false;
+
+    static final int LOAD_CLASS = name("loadClass");
+    static final int RESOLVE = name("resolve");
+    static final int HOOK = name("hook");
+    static final int DEOPTIMIZE = name("deoptimize");
+
+    private TraceBuffer() {
+    }
+
+    /**
+     * Interns a span name, not meant for hot paths.
+     */
+    static synchronized int name(String name) {
+        var id = ids.get(name);
+        if (id != null) return id;
+        var current = table;
+        var grown = new String[current.length + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        grown[current.length] = name;
+        table = grown;
+        ids.put(name, current.length);
+        return current.length;
+    }
+
+    static void setTidSource(IntSupplier source) {
+        tidSource = source;
+    }
+
+    static void setSampling(boolean sampling) {
+        TraceBuffer.sampling = sampling;
+    }
+
+    static boolean isSampling() {
+        return sampling;
+    }
+
+    static long begin() {
+        return System.nanoTime();
+    }
+
+    static void end(int name, long begin) {
+        span(name, begin, System.nanoTime());
+    }
+
+    static void span(int name, long begin, long end) {
+        int slot = next.getAndIncrement() & MASK;
+        // end doubles as the commit marker, readers skip slots with end < begin
+        ends[slot] = Long.MIN_VALUE;
+        begins[slot] = begin;
+        names[slot] = name;
+        tids[slot] = tidSource.getAsInt();
+        ends[slot] = end;
+    }
+
+    static void clear() {
+        next.set(0);
+        Arrays.fill(ends, Long.MIN_VALUE);
+    }
+
+    /**
+     * Copy of the recorded spans, oldest first.
+     */
+    static Snapshot snapshot() {
+        int written = next.get();
+        int count = Math.min(written, CAPACITY);
+        var snapshot = new Snapshot(count, table);
+        for (int i = 0; i < count; i++) {
+            int slot = (written - count + i) & MASK;
+            var end = ends[slot];
+            var begin = begins[slot];
+            if (end < begin) continue;
+            snapshot.add(begin, end, names[slot], tids[slot]);
+        }
+        return snapshot;
+    }
+
+    static final class Snapshot {
+        final long[] begins;
+        final long[] ends;
+        final int[] names;
+        final int[] tids;
+        final String[] table;
+        int size;
+
+        Snapshot(int capacity, String[] table) {
+            begins = new long[capacity];
+            ends = new long[capacity];
+            names = new int[capacity];
+            tids = new int[capacity];
+            this.table = table;
+        }
+
+        void add(long begin, long end, int name, int tid) {
+            begins[size] = begin;
+            ends[size] = end;
+            names[size] = name;
+            tids[size] = tid;
+            size++;
+        }
+    }
+}
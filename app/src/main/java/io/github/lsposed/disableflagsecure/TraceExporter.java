@@ -0,0 +1,154 @@
+package io.github.lsposed.disableflagsecure;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Writes a {@link TraceBuffer.Snapshot} as a Perfetto protobuf trace of TrackEvent slices, one
+ * track per thread. A clock snapshot maps CLOCK_MONOTONIC to CLOCK_BOOTTIME so the spans line
+ * up with system traces in Trace Processor.
+ */
+final class TraceExporter {
+    // perfetto.protos.BuiltinClock
+    private static final int CLOCK_MONOTONIC = 3;
+    private static final int CLOCK_BOOTTIME = 6;
+
+    // perfetto.protos.TrackEvent.Type
+    private static final int TYPE_SLICE_BEGIN = 1;
+    private static final int TYPE_SLICE_END = 2;
+
+    private static final int SEQ_INCREMENTAL_STATE_CLEARED = 1;
+    private static final int SEQUENCE_ID = 0x44465321;
+
+    private TraceExporter() {
+    }
+
+    /**
+     * @param monotonicNanos CLOCK_MONOTONIC at export time
+     * @param boottimeNanos  CLOCK_BOOTTIME at the same instant
+     */
+    static void write(OutputStream out, TraceBuffer.Snapshot snapshot, int pid, String processName,
+                      long monotonicNanos, long boottimeNanos) throws IOException {
+        var clocks = new Proto()
+                .message(1, new Proto().varint(1, CLOCK_MONOTONIC).varint(2, monotonicNanos))
+                .message(1, new Proto().varint(1, CLOCK_BOOTTIME).varint(2, boottimeNanos));
+        packet(out, new Proto()
+                .message(6, clocks)
+                .varint(10, SEQUENCE_ID)
+                .varint(13, SEQ_INCREMENTAL_STATE_CLEARED));
+
+        long processUuid = pid;
+        packet(out, new Proto()
+                .message(60, new Proto()
+                        .varint(1, processUuid)
+                        .message(3, new Proto().varint(1, pid).string(6, processName)))
+                .varint(10, SEQUENCE_ID));
+
+        var threads = new ArrayList<Integer>();
+        for (int i = 0; i < snapshot.size; i++) {
+            if (!threads.contains(snapshot.tids[i])) threads.add(snapshot.tids[i]);
+        }
+        for (var tid : threads) {
+            packet(out, new Proto()
+                    .message(60, new Proto()
+                            .varint(1, threadUuid(pid, tid))
+                            .varint(5, processUuid)
+                            .message(4, new Proto().varint(1, pid).varint(2, tid)))
+                    .varint(10, SEQUENCE_ID));
+        }
+
+        // Begin/end pairs in timestamp order, ends before begins on ties so siblings do not nest
+        var order = new Long[snapshot.size * 2];
+        for (int i = 0; i < snapshot.size; i++) {
+            order[i * 2] = (long) i << 1;
+            order[i * 2 + 1] = ((long) i << 1) | 1;
+        }
+        Arrays.sort(order, (a, b) -> {
+            int c = Long.compare(timestamp(snapshot, a), timestamp(snapshot, b));
+            if (c != 0) return c;
+            return Long.compare(b & 1, a & 1);
+        });
+        for (var event : order) {
+            int i = (int) (event >>> 1);
+            boolean end = (event & 1) != 0;
+            var trackEvent = new Proto()
+                    .varint(9, end ? TYPE_SLICE_END : TYPE_SLICE_BEGIN)
+                    .varint(11, threadUuid(pid, snapshot.tids[i]));
+            if (!end) trackEvent.string(23, snapshot.table[snapshot.names[i]]);
+            packet(out, new Proto()
+                    .varint(8, timestamp(snapshot, event))
+                    .varint(58, CLOCK_MONOTONIC)
+                    .message(11, trackEvent)
+                    .varint(10, SEQUENCE_ID));
+        }
+    }
+
+    private static long timestamp(TraceBuffer.Snapshot snapshot, long event) {
+        int i = (int) (event >>> 1);
+        return (event & 1) != 0 ? snapshot.ends[i] : snapshot.begins[i];
+    }
+
+    private static long threadUuid(int pid, int tid) {
+        return ((long) pid << 32) | (tid & 0xffffffffL);
+    }
+
+    // Trace.packet is field 1
+    private static void packet(OutputStream out, Proto packet) throws IOException {
+        var bytes = packet.toByteArray();
+        Proto.writeTag(out, 1, 2);
+        Proto.writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Minimal protobuf encoder for the handful of fields above.
+     */
+    private static final class Proto {
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+        Proto varint(int field, long value) {
+            writeTag(buf, field, 0);
+            writeVarint(buf, value);
+            return this;
+        }
+
+        Proto string(int field, String value) {
+            return bytes(field, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Proto message(int field, Proto message) {
+            return bytes(field, message.toByteArray());
+        }
+
+        private Proto bytes(int field, byte[] value) {
+            writeTag(buf, field, 2);
+            writeVarint(buf, value.length);
+            buf.write(value, 0, value.length);
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return buf.toByteArray();
+        }
+
+        static void writeTag(OutputStream out, int field, int wireType) {
+            writeVarint(out, ((long) field << 3) | wireType);
+        }
+
+        static void writeVarint(OutputStream out, long value) {
+            try {
+                while ((value & ~0x7fL) != 0) {
+                    out.write((int) ((value & 0x7f) | 0x80));
+                    value >>>= 7;
+                }
+                out.write((int) value);
+            } catch (IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package io.github.lsposed.disableflagsecure;
+
+import java.util.Arrays;
+
+/**
+ * Which UIDs get the secure bypass. Immutable, published as part of {@link Config}.
+ * <p>
+ * Spec: comma separated entries, {@code *} for everyone, {@code <appId>} for an app in every
+ * user or {@code <userId>:<appId>} for an app in one user. {@code 10123,10:10200}
+ */
+final class UidPolicy {
+    // UserHandle.PER_USER_RANGE
+    static final int PER_USER_RANGE = 100000;
+    private static final int WORDS = (PER_USER_RANGE + 63) >>> 6;
+
+    static final UidPolicy ALL = new UidPolicy("*", true, null, new long[0][]);
+
+    final String spec;
+    private final boolean all;
+    // App ID bit set shared by every user
+    private final long[] anyUser;
+    // App ID bit set per user ID, null for users without entries
+    private final long[][] byUser;
+
+    private UidPolicy(String spec, boolean all, long[] anyUser, long[][] byUser) {
+        this.spec = spec;
+        this.all = all;
+        this.anyUser = anyUser;
+        this.byUser = byUser;
+    }
+
+    static UidPolicy parse(String spec) {
+        var anyUser = new long[WORDS];
+        var byUser = new long[0][];
+        var entries = 0;
+        for (var entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            if (entry.equals("*")) return ALL;
+            var colon = entry.indexOf(':');
+            var appId = Integer.parseInt(entry.substring(colon + 1).trim());
+            if (appId < 0 || appId >= PER_USER_RANGE) {
+                throw new IllegalArgumentException("app ID out of range: " + entry);
+            }
+            if (colon < 0) {
+                set(anyUser, appId);
+            } else {
+                var userId = Integer.parseInt(entry.substring(0, colon).trim());
+                if (userId < 0) throw new IllegalArgumentException("negative user ID: " + entry);
+                if (userId >= byUser.length) byUser = Arrays.copyOf(byUser, userId + 1);
+                if (byUser[userId] == null) byUser[userId] = new long[WORDS];
+                set(byUser[userId], appId);
+            }
+            entries++;
+        }
+        return new UidPolicy(entries == 0 ? "" : spec, false, anyUser, byUser);
+    }
+
+    boolean allowsAll() {
+        return all;
+    }
+
+    boolean allows(int uid) {
+        if (all) return true;
+        if (uid < 0) return false;
+        var userId = uid / PER_USER_RANGE;
+        var appId = uid - userId * PER_USER_RANGE;
+        if (get(anyUser, appId)) return true;
+        var users = byUser;
+        return userId < users.length && users[userId] != null && get(users[userId], appId);
+    }
+
+    @Override
+    public String toString() {
+        return all ? "everyone" : spec.isEmpty() ? "nobody" : spec;
+    }
+
+    private static void set(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private static boolean get(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+}
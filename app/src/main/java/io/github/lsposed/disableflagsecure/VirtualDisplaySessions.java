@@ -0,0 +1,149 @@
+package io.github.lsposed.disableflagsecure;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Virtual displays created through VirtualDisplayAdapter that are still alive, keyed by the app
+ * token the adapter releases them with. Striped by token hash, so every lookup and update is O(1)
+ * and only contends with displays in the same stripe. At most {@link Config#maxSessions} are
+ * tracked; displays beyond that still get their flags, they are only counted.
+ * <p>
+ * The policy of the displays of an owner UID can be overridden from dumpsys, ahead of recorder_policy.
+ * The flags are fixed once a display exists, so an override applies from the next display the
+ * owner creates; sessions still on another policy are marked in the dump.
+ */
+final class VirtualDisplaySessions {
+    // Flags left as requested
+    static final int POLICY_KEEP = 0;
+    // VIRTUAL_DISPLAY_FLAG_SECURE forced
+    static final int POLICY_SECURE = 1;
+    // No override, recorder_policy decides
+    static final int POLICY_DEFAULT = -1;
+    static final String[] POLICIES = {"keep", "secure"};
+
+    static final class Session {
+        final int ownerUid;
+        final boolean projection;
+        final int requestedFlags;
+        final int appliedFlags;
+        final int policy;
+        final long createdNanos;
+
+        Session(int ownerUid, boolean projection, int requestedFlags, int appliedFlags, int policy, long createdNanos) {
+            this.ownerUid = ownerUid;
+            this.projection = projection;
+            this.requestedFlags = requestedFlags;
+            this.appliedFlags = appliedFlags;
+            this.policy = policy;
+            this.createdNanos = createdNanos;
+        }
+    }
+
+    private static final int STRIPES = 16;
+    private static final List<HashMap<Object, Session>> stripes = new ArrayList<>(STRIPES);
+    private static final AtomicInteger size = new AtomicInteger();
+    private static final AtomicLong overflow = new AtomicLong();
+    // Owner UID to policy, copy on write, read once per display creation
+    private static volatile Map<Integer, Integer> overrides = Map.of();
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.add(new HashMap<>());
+        }
+    }
+
+    private VirtualDisplaySessions() {
+    }
+
+    /**
+     * @return false if the registry is full and the session was not tracked
+     */
+    static boolean put(Object token, Session session, int capacity) {
+        var stripe = stripe(token);
+        synchronized (stripe) {
+            if (stripe.containsKey(token)) {
+                stripe.put(token, session);
+                return true;
+            }
+            if (size.incrementAndGet() > capacity) {
+                size.decrementAndGet();
+                overflow.incrementAndGet();
+                return false;
+            }
+            stripe.put(token, session);
+            return true;
+        }
+    }
+
+    /**
+     * @param policy POLICY_KEEP, POLICY_SECURE or POLICY_DEFAULT to drop the override
+     */
+    static synchronized void setPolicy(int ownerUid, int policy) {
+        var next = new HashMap<>(overrides);
+        if (policy == POLICY_DEFAULT) {
+            next.remove(ownerUid);
+        } else {
+            next.put(ownerUid, policy);
+        }
+        overrides = Map.copyOf(next);
+    }
+
+    /**
+     * @return the override for displays of the UID, POLICY_DEFAULT if none
+     */
+    static int policy(int ownerUid) {
+        var policy = overrides.get(ownerUid);
+        return policy == null ? POLICY_DEFAULT : policy;
+    }
+
+    static Session get(Object token) {
+        var stripe = stripe(token);
+        synchronized (stripe) {
+            return stripe.get(token);
+        }
+    }
+
+    static Session remove(Object token) {
+        var stripe = stripe(token);
+        synchronized (stripe) {
+            var session = stripe.remove(token);
+            if (session != null) size.decrementAndGet();
+            return session;
+        }
+    }
+
+    static void dump(PrintWriter pw) {
+        pw.println("Virtual display sessions: " + size.get() + " of " + Config.current().maxSessions + " tracked, " +
+                overflow.get() + " untracked since boot");
+        var current = overrides;
+        for (var override : current.entrySet()) {
+            pw.println("  uid " + override.getKey() + " overridden to " + POLICIES[override.getValue()]);
+        }
+        var now = System.nanoTime();
+        for (var stripe : stripes) {
+            ArrayList<Session> sessions;
+            synchronized (stripe) {
+                sessions = new ArrayList<>(stripe.values());
+            }
+            for (var session : sessions) {
+                var override = current.get(session.ownerUid);
+                pw.println("  uid " + session.ownerUid + (session.projection ? " with projection" : "") +
+                        ", flags 0x" + Integer.toHexString(session.requestedFlags) +
+                        " -> 0x" + Integer.toHexString(session.appliedFlags) + ", " + POLICIES[session.policy] +
+                        (override != null && override != session.policy ? " until recreated" : "") +
+                        ", " + (now - session.createdNanos) / 1_000_000_000 + "s old");
+            }
+        }
+    }
+
+    private static HashMap<Object, Session> stripe(Object token) {
+        var h = token.hashCode();
+        return stripes.get((h ^ (h >>> 16)) & (STRIPES - 1));
+    }
+}
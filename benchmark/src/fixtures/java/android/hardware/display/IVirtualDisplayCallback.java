@@ -0,0 +1,6 @@
+package android.hardware.display;
+
+import android.os.IInterface;
+
+public interface IVirtualDisplayCallback extends IInterface {
+}
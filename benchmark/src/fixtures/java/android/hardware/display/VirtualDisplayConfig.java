@@ -0,0 +1,4 @@
+package android.hardware.display;
+
+public final class VirtualDisplayConfig {
+}
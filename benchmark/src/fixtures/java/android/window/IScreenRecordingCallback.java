@@ -0,0 +1,4 @@
+package android.window;
+
+public interface IScreenRecordingCallback {
+}
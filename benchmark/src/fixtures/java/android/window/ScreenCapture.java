@@ -0,0 +1,48 @@
+package android.window;
+
+// U~Baklava
+public class ScreenCapture {
+    private static int nativeCaptureDisplay(DisplayCaptureArgs captureArgs, long captureListener) {
+        return 0;
+    }
+
+    private static int nativeCaptureLayers(LayerCaptureArgs captureArgs, long captureListener, boolean sync) {
+        return 0;
+    }
+
+    public static class CaptureArgs {
+        public final boolean mCaptureSecureLayers;
+
+        CaptureArgs(Builder<? extends Builder<?>> builder) {
+            mCaptureSecureLayers = builder.mCaptureSecureLayers;
+        }
+
+        public abstract static class Builder<T extends Builder<T>> {
+            private boolean mCaptureSecureLayers;
+        }
+    }
+
+    public static class DisplayCaptureArgs extends CaptureArgs {
+        private DisplayCaptureArgs(Builder builder) {
+            super(builder);
+        }
+
+        public static class Builder extends CaptureArgs.Builder<Builder> {
+        }
+    }
+
+    public static class LayerCaptureArgs extends CaptureArgs {
+        private LayerCaptureArgs(Builder builder) {
+            super(builder);
+        }
+
+        public static class Builder extends CaptureArgs.Builder<Builder> {
+        }
+    }
+
+    public static class ScreenshotHardwareBuffer {
+        public boolean containsSecureLayers() {
+            return true;
+        }
+    }
+}
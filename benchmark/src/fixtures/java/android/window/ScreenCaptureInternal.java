@@ -0,0 +1,22 @@
+package android.window;
+
+// Baklava QPR
+public class ScreenCaptureInternal {
+    private static int nativeCaptureDisplay(DisplayCaptureArgs captureArgs, long captureListener) {
+        return 0;
+    }
+
+    private static int nativeCaptureLayers(LayerCaptureArgs captureArgs, long captureListener, boolean sync) {
+        return 0;
+    }
+
+    public static class CaptureArgs {
+        private int mSecureContentPolicy;
+    }
+
+    public static class DisplayCaptureArgs extends CaptureArgs {
+    }
+
+    public static class LayerCaptureArgs extends CaptureArgs {
+    }
+}
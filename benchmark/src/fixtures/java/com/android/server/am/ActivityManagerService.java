@@ -0,0 +1,7 @@
+package com.android.server.am;
+
+public class ActivityManagerService {
+    public int checkPermission(String permission, int pid, int uid) {
+        return -1;
+    }
+}
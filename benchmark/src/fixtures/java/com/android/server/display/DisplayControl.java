@@ -0,0 +1,12 @@
+package com.android.server.display;
+
+// U renamed createVirtualDisplay in V, both are kept so one fixture serves U~Baklava
+public class DisplayControl {
+    public static Object createDisplay(String name, boolean secure) {
+        return null;
+    }
+
+    public static Object createVirtualDisplay(String name, boolean secure) {
+        return null;
+    }
+}
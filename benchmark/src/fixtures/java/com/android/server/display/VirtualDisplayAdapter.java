@@ -0,0 +1,33 @@
+package com.android.server.display;
+
+import android.hardware.display.IVirtualDisplayCallback;
+import android.hardware.display.VirtualDisplayConfig;
+import android.media.projection.IMediaProjection;
+import android.os.IBinder;
+import android.view.Surface;
+
+public class VirtualDisplayAdapter {
+    // S~T
+    public Object createVirtualDisplayLocked(IVirtualDisplayCallback callback, IMediaProjection projection,
+                                             int ownerUid, String packageName, Surface surface, int flags,
+                                             VirtualDisplayConfig virtualDisplayConfig) {
+        return null;
+    }
+
+    // U~Baklava
+    public Object createVirtualDisplayLocked(IVirtualDisplayCallback callback, IMediaProjection projection,
+                                             int ownerUid, String packageName, String uniqueId, Surface surface,
+                                             int flags, VirtualDisplayConfig virtualDisplayConfig) {
+        return null;
+    }
+
+    public Object releaseVirtualDisplayLocked(IBinder appToken) {
+        return null;
+    }
+
+    private void handleBinderDiedLocked(IBinder appToken) {
+    }
+
+    private void handleMediaProjectionStoppedLocked(IBinder appToken) {
+    }
+}
@@ -0,0 +1,9 @@
+package com.android.server.wm;
+
+import android.app.IScreenCaptureObserver;
+import android.os.IBinder;
+
+public class ActivityTaskManagerService {
+    public void registerScreenCaptureObserver(IBinder activityToken, IScreenCaptureObserver observer) {
+    }
+}
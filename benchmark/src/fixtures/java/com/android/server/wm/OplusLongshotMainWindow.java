@@ -0,0 +1,8 @@
+package com.android.server.wm;
+
+// ColorOS / OxygenOS
+class OplusLongshotMainWindow {
+    boolean hasSecure() {
+        return true;
+    }
+}
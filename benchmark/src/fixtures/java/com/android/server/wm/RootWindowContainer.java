@@ -0,0 +1,30 @@
+package com.android.server.wm;
+
+import java.util.function.BiConsumer;
+
+class RootWindowContainer {
+    // What D8 names the lambdas, numbered from 0; the one in forAllWindows is a BiConsumer
+    static final class $ExternalSyntheticLambda0 implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+
+    static final class $ExternalSyntheticLambda1 implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+
+    static final class $ExternalSyntheticLambda2 implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+
+    static final class $ExternalSyntheticLambda3 implements BiConsumer<Object, Object> {
+        @Override
+        public void accept(Object windowState, Object outList) {
+        }
+    }
+}
@@ -0,0 +1,5 @@
+package com.android.server.wm;
+
+public class Session {
+    final int mUid = 10123;
+}
@@ -0,0 +1,37 @@
+package com.android.server.wm;
+
+import android.view.IWindow;
+import android.view.WindowManager;
+import android.window.IScreenRecordingCallback;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+public class WindowManagerService {
+    public int addWindow(Session session, IWindow client, WindowManager.LayoutParams attrs, int viewVisibility,
+                         int displayId, int requestUserId, int requestedVisibleTypes, Object outInputChannel,
+                         Object outInsetsState, Object outActiveControls, Object outAttachedFrame,
+                         float[] outSizeCompatScale) {
+        return 0;
+    }
+
+    public int relayoutWindow(Session session, IWindow client, WindowManager.LayoutParams attrs, int requestedWidth,
+                              int requestedHeight, int viewVisibility, int flags, int seq,
+                              int lastSyncSeqId, Object outFrames, Object outMergedConfiguration,
+                              Object outSurfaceControl, Object outInsetsState, Object outActiveControls,
+                              Object outSyncSeqIdBundle) {
+        return 0;
+    }
+
+    private int createSurfaceControl(Object outSurfaceControl, int result, WindowState win,
+                                     WindowStateAnimator winAnimator) {
+        return result;
+    }
+
+    public boolean registerScreenRecordingCallback(IScreenRecordingCallback callback) {
+        return false;
+    }
+
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+    }
+}
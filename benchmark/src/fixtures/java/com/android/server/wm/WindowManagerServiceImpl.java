@@ -0,0 +1,8 @@
+package com.android.server.wm;
+
+// HyperOS
+public class WindowManagerServiceImpl {
+    public boolean notAllowCaptureDisplay(Object rootWindowContainer, int displayId) {
+        return true;
+    }
+}
@@ -0,0 +1,20 @@
+package com.android.server.wm;
+
+import android.view.IWindow;
+import android.view.WindowManager;
+
+public class WindowState {
+    final int mOwnerUid = 10123;
+    final IWindow mClient = null;
+    final WindowManager.LayoutParams mAttrs = new WindowManager.LayoutParams();
+
+    boolean isSecureLocked() {
+        return true;
+    }
+
+    void setInitialSurfaceControlProperties(Object builder) {
+    }
+
+    void removeImmediately() {
+    }
+}
@@ -0,0 +1,9 @@
+package com.android.server.wm;
+
+class WindowStateAnimator {
+    final WindowState mWin = null;
+
+    Object createSurfaceLocked() {
+        return null;
+    }
+}
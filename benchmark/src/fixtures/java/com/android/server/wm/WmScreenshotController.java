@@ -0,0 +1,12 @@
+package com.android.server.wm;
+
+// OneUI
+class WmScreenshotController {
+    boolean canBeScreenshotTarget(WindowState windowState) {
+        return false;
+    }
+
+    boolean canBeScreenshotTarget(WindowState windowState, int displayId) {
+        return false;
+    }
+}
@@ -0,0 +1,12 @@
+package com.oplus.screenshot;
+
+// Oplus Screenshot 15.0.0
+public class OplusScreenCapture {
+    public static class CaptureArgs {
+        public static class Builder {
+            public Builder setUid(long uid) {
+                return this;
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package io.github.lsposed.disableflagsecure;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the call site checks done by SecureLockedHooker: StackWalker (U+),
+ * Throwable#getStackTrace (S~T) and the CallSite marker. Each check runs below
+ * {@code depth} frames to mimic the relayout path in system_server.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CallSiteBenchmark {
+
+    @Param({"16", "64"})
+    public int depth;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        CallSite.setTracked(CallSite.SURFACE);
+    }
+
+    @Benchmark
+    public boolean stackWalker() {
+        return descend(depth, 0);
+    }
+
+    @Benchmark
+    public boolean throwableStackTrace() {
+        return descend(depth, 1);
+    }
+
+    @Benchmark
+    public boolean callSiteMarker() {
+        return descend(depth, 2);
+    }
+
+    private static boolean descend(int depth, int mode) {
+        if (depth > 0) return descend(depth - 1, mode);
+        return switch (mode) {
+            case 0 -> walk();
+            case 1 -> trace();
+            default -> CallSite.inside(CallSite.SURFACE);
+        };
+    }
+
+    private static boolean walk() {
+        return StackWalker.getInstance().walk(frames -> frames
+                .map(StackWalker.StackFrame::getMethodName)
+                .limit(6)
+                .skip(2)
+                .anyMatch(s -> s.equals("setInitialSurfaceControlProperties") || s.equals("createSurfaceLocked")));
+    }
+
+    private static boolean trace() {
+        var stackTrace = new Throwable().getStackTrace();
+        for (int i = 4; i < stackTrace.length && i < 8; i++) {
+            var name = stackTrace[i].getMethodName();
+            if (name.equals("setInitialSurfaceControlProperties") ||
+                    name.equals("createSurfaceLocked")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,58 @@
+package io.github.lsposed.disableflagsecure;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CaptureArgs write alone, through the prebound setter and through the reflective fallback,
+ * for both field variants.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CapturePolicyBenchmark {
+
+    @Param({"mCaptureSecureLayers", "mSecureContentPolicy"})
+    public String field;
+
+    @Param({"true", "false"})
+    public boolean prebound;
+
+    /**
+     * Both variants in one class, the policy only touches the field it was built for.
+     */
+    static class CaptureArgs {
+        boolean mCaptureSecureLayers;
+        int mSecureContentPolicy;
+    }
+
+    private CapturePolicy policy;
+    private CaptureArgs captureArgs;
+
+    @Setup
+    public void setup() throws NoSuchFieldException {
+        var declared = CaptureArgs.class.getDeclaredField(field);
+        policy = prebound ? CapturePolicy.of(declared) : CapturePolicy.reflective(declared);
+        captureArgs = new CaptureArgs();
+    }
+
+    @Benchmark
+    public Object apply() throws Throwable {
+        policy.apply(captureArgs);
+        return captureArgs;
+    }
+}
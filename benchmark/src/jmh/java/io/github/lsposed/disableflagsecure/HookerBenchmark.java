@@ -0,0 +1,146 @@
+package io.github.lsposed.disableflagsecure;
+
+import android.media.projection.IMediaProjection;
+import android.view.Surface;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the before callback of the system_server hot path hookers below {@code depth} frames,
+ * with the argument arrays they see on device. Run with the gc profiler for allocation rates:
+ * {@code ./gradlew :benchmark:jmh}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HookerBenchmark {
+
+    // Relayout / screenshot paths in system_server are 30~90 frames deep
+    @Param({"32", "96"})
+    public int depth;
+
+    // Whether the call site markers from CallSite are installed
+    @Param({"true", "false"})
+    public boolean tracked;
+
+    @Param({"false", "true"})
+    public boolean stats;
+
+    /**
+     * Stand-in for ScreenCapture$CaptureArgs before Baklava.
+     */
+    static class CaptureArgs {
+        boolean mCaptureSecureLayers;
+
+        static int nativeCaptureDisplay(CaptureArgs captureArgs, long captureListener) {
+            return 0;
+        }
+    }
+
+    // Layout of VirtualDisplayAdapter#createVirtualDisplayLocked on U~Baklava
+    static Object createVirtualDisplayLocked(Object callback, IMediaProjection projection, int ownerUid,
+                                             String packageName, String uniqueId, Surface surface,
+                                             int flags, Object virtualDisplayConfig) {
+        return null;
+    }
+
+    private StubCallback secureLocked;
+    private StubCallback createDisplay;
+    private StubCallback virtualDisplaySystem;
+    private StubCallback virtualDisplayApp;
+    private StubCallback screenCapture;
+
+    @Setup(Level.Trial)
+    public void setup() throws ReflectiveOperationException {
+        if (tracked) {
+            CallSite.setTracked(CallSite.SURFACE);
+            CallSite.setTracked(CallSite.VIRTUAL_DISPLAY);
+        }
+        Config.publish(Config.DEFAULT.withStats(stats));
+
+        setStatic("capturePolicy", CapturePolicy.of(CaptureArgs.class.getDeclaredField("mCaptureSecureLayers")));
+
+        var member = Object.class.getMethod("toString");
+        var virtualDisplay = HookerBenchmark.class.getDeclaredMethod("createVirtualDisplayLocked", Object.class,
+                IMediaProjection.class, int.class, String.class, String.class, Surface.class, int.class, Object.class);
+        var capture = CaptureArgs.class.getDeclaredMethod("nativeCaptureDisplay", CaptureArgs.class, long.class);
+        DisableFlagSecure.CreateVirtualDisplayLockedHooker.bind(virtualDisplay);
+        DisableFlagSecure.ScreenCaptureHooker.bind(capture);
+
+        secureLocked = new StubCallback(member, new Object());
+        createDisplay = new StubCallback(member, null, "Overlay #1", false);
+        virtualDisplaySystem = new StubCallback(virtualDisplay, new Object(),
+                new Object(), null, 1000, "com.android.systemui", "uid", null, 0, new Object());
+        virtualDisplayApp = new StubCallback(virtualDisplay, new Object(),
+                new Object(), null, 10123, "com.example", "uid", null, 0, new Object());
+        screenCapture = new StubCallback(capture, null, new CaptureArgs(), 0L);
+    }
+
+    private static void setStatic(String name, Object value) throws ReflectiveOperationException {
+        Field field = DisableFlagSecure.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(null, value);
+    }
+
+    @Benchmark
+    public Object secureLocked() {
+        return descend(depth, secureLocked, 0);
+    }
+
+    @Benchmark
+    public Object createDisplay() {
+        return descend(depth, createDisplay, 1);
+    }
+
+    @Benchmark
+    public Object createVirtualDisplayLockedSystem() {
+        return descend(depth, virtualDisplaySystem, 2);
+    }
+
+    @Benchmark
+    public Object createVirtualDisplayLockedApp() {
+        return descend(depth, virtualDisplayApp, 2);
+    }
+
+    @Benchmark
+    public Object screenCapture() {
+        return descend(depth, screenCapture, 3);
+    }
+
+    private static Object descend(int depth, StubCallback callback, int hooker) {
+        if (depth > 0) return descend(depth - 1, callback, hooker);
+        callback.reset();
+        switch (hooker) {
+            case 0:
+                DisableFlagSecure.SecureLockedHooker.before(callback);
+                break;
+            case 1:
+                DisableFlagSecure.CreateDisplayHooker.before(callback);
+                break;
+            case 2:
+                DisableFlagSecure.CreateVirtualDisplayLockedHooker.before(callback);
+                break;
+            default:
+                DisableFlagSecure.ScreenCaptureHooker.before(callback);
+                break;
+        }
+        return callback.result;
+    }
+}
@@ -0,0 +1,120 @@
+package io.github.lsposed.disableflagsecure;
+
+import android.os.IBinder;
+import android.view.IWindow;
+import android.view.WindowManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One relayout of a secure window followed by {@code checks} isSecureLocked calls (relayoutWindow
+ * itself, the RootWindowContainer / DisplayContent lambdas walking the windows), in both modes.
+ * Intercepted: every call goes through SecureLockedHooker, and the caller is kept out of the JIT
+ * like the deoptimized callers on device. Indexed: SecureWindowHooker clears the flag once per
+ * relayout and isSecureLocked stays a compiled field read. The deoptimized method count of each
+ * mode is reported by the install simulator, aosp-35 against aosp-35-indexed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SecureWindowIndexBenchmark {
+
+    @Param({"1", "8", "32"})
+    public int checks;
+
+    /**
+     * Stand-in for WindowState: its flags and isSecureLocked.
+     */
+    static final class Window {
+        final WindowManager.LayoutParams attrs = new WindowManager.LayoutParams();
+
+        boolean isSecureLocked() {
+            return (attrs.flags & WindowManager.LayoutParams.FLAG_SECURE) != 0;
+        }
+    }
+
+    static final class Client implements IWindow {
+        private final IBinder binder = new IBinder() {
+        };
+
+        @Override
+        public IBinder asBinder() {
+            return binder;
+        }
+    }
+
+    // Layout of WindowManagerService#relayoutWindow, as far as SecureWindowHooker reads it
+    static int relayoutWindow(Object session, IWindow client, WindowManager.LayoutParams attrs, int requestedWidth,
+                              int requestedHeight, int viewVisibility) {
+        return 0;
+    }
+
+    private final Window window = new Window();
+    // Unparceled from the app on each relayout
+    private final WindowManager.LayoutParams params = new WindowManager.LayoutParams();
+    private StubCallback relayout;
+    private StubCallback secureLocked;
+
+    @Setup(Level.Trial)
+    public void setup() throws ReflectiveOperationException {
+        CallSite.setTracked(CallSite.SURFACE);
+        Config.publish(Config.DEFAULT);
+        var method = SecureWindowIndexBenchmark.class.getDeclaredMethod("relayoutWindow", Object.class,
+                IWindow.class, WindowManager.LayoutParams.class, int.class, int.class, int.class);
+        DisableFlagSecure.SecureWindowHooker.bind(method);
+        relayout = new StubCallback(method, new Object(), new Object(), new Client(), params, 1080, 2400, 0);
+        secureLocked = new StubCallback(Window.class.getDeclaredMethod("isSecureLocked"), window);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-XX:CompileCommand=quiet",
+            "-XX:CompileCommand=exclude,io.github.lsposed.disableflagsecure.SecureWindowIndexBenchmark::relayoutIntercepted"})
+    public int intercepted() {
+        return relayoutIntercepted(window, params, secureLocked, checks);
+    }
+
+    @Benchmark
+    public int indexed() {
+        return relayoutIndexed(window, params, relayout, checks);
+    }
+
+    static int relayoutIntercepted(Window window, WindowManager.LayoutParams params, StubCallback callback, int checks) {
+        params.flags = WindowManager.LayoutParams.FLAG_SECURE;
+        window.attrs.flags = params.flags;
+        int secure = 0;
+        for (int i = 0; i < checks; i++) {
+            callback.reset();
+            DisableFlagSecure.SecureLockedHooker.before(callback);
+            if (callback.skipped ? (Boolean) callback.result : window.isSecureLocked()) secure++;
+        }
+        return secure;
+    }
+
+    static int relayoutIndexed(Window window, WindowManager.LayoutParams params, StubCallback callback, int checks) {
+        params.flags = WindowManager.LayoutParams.FLAG_SECURE;
+        callback.reset();
+        DisableFlagSecure.SecureWindowHooker.before(callback);
+        window.attrs.flags = params.flags;
+        int secure = 0;
+        for (int i = 0; i < checks; i++) {
+            if (window.isSecureLocked()) secure++;
+        }
+        return secure;
+    }
+}
@@ -0,0 +1,58 @@
+package io.github.lsposed.disableflagsecure;
+
+import java.lang.reflect.Member;
+
+import io.github.libxposed.api.XposedInterface;
+
+/**
+ * Reusable callback, the way the framework hands one to each hooker invocation.
+ */
+final class StubCallback implements XposedInterface.BeforeHookCallback {
+    private final Member member;
+    private final Object thisObject;
+    private final Object[] template;
+    // Allocated once, restored in place so reset() does not show up in the gc profiler
+    private final Object[] args;
+    Object result;
+    boolean skipped;
+
+    StubCallback(Member member, Object thisObject, Object... args) {
+        this.member = member;
+        this.thisObject = thisObject;
+        this.template = args;
+        this.args = args.clone();
+    }
+
+    StubCallback reset() {
+        System.arraycopy(template, 0, args, 0, args.length);
+        result = null;
+        skipped = false;
+        return this;
+    }
+
+    @Override
+    public Member getMember() {
+        return member;
+    }
+
+    @Override
+    public Object getThisObject() {
+        return thisObject;
+    }
+
+    @Override
+    public Object[] getArgs() {
+        return args;
+    }
+
+    @Override
+    public void returnAndSkip(Object result) {
+        this.result = result;
+        skipped = true;
+    }
+
+    @Override
+    public void throwAndSkip(Throwable throwable) {
+        skipped = true;
+    }
+}
@@ -0,0 +1,81 @@
+package io.github.lsposed.disableflagsecure;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the UID allowlist on the relayout path: the lookup alone, and SecureLockedHooker
+ * reading the window owner under each policy.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UidPolicyBenchmark {
+
+    @Param({"*", "10123", "10200,10:10123,150:10300"})
+    public String policy;
+
+    /**
+     * Stand-in for WindowState.
+     */
+    static class Window {
+        final int mOwnerUid;
+
+        Window(int ownerUid) {
+            mOwnerUid = ownerUid;
+        }
+    }
+
+    private final int[] uids = {10123, 1010123, 10200, 15010300, 1000, 10999};
+    private int next;
+    private StubCallback[] windows;
+
+    @Setup(Level.Trial)
+    public void setup() throws ReflectiveOperationException {
+        Config.publish(Config.DEFAULT.withUidPolicy(UidPolicy.parse(policy)));
+        CallSite.setTracked(CallSite.SURFACE);
+
+        var field = DisableFlagSecure.class.getDeclaredField("ownerUidField");
+        field.setAccessible(true);
+        Field ownerUid = Window.class.getDeclaredField("mOwnerUid");
+        ownerUid.setAccessible(true);
+        field.set(null, ownerUid);
+
+        var member = Object.class.getMethod("toString");
+        windows = new StubCallback[uids.length];
+        for (int i = 0; i < uids.length; i++) {
+            windows[i] = new StubCallback(member, new Window(uids[i]));
+        }
+    }
+
+    @Benchmark
+    public boolean allows() {
+        var uid = uids[next];
+        next = next == uids.length - 1 ? 0 : next + 1;
+        return Config.current().uidPolicy.allows(uid);
+    }
+
+    @Benchmark
+    public Object secureLocked() {
+        var callback = windows[next].reset();
+        next = next == windows.length - 1 ? 0 : next + 1;
+        DisableFlagSecure.SecureLockedHooker.before(callback);
+        return callback.result;
+    }
+}
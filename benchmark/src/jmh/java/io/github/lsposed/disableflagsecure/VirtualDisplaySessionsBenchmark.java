@@ -0,0 +1,74 @@
+package io.github.lsposed.disableflagsecure;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Virtual display registry with {@code sessions} live displays: a lookup, and a display created
+ * and released again, from four threads as in a device farm running parallel recordings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class VirtualDisplaySessionsBenchmark {
+
+    @Param({"16", "256", "1024"})
+    public int sessions;
+
+    private Object[] tokens;
+    private VirtualDisplaySessions.Session session;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+        final Object token = new Object();
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        session = new VirtualDisplaySessions.Session(10123, true, 0, 4, VirtualDisplaySessions.POLICY_SECURE, 0);
+        tokens = new Object[sessions];
+        for (int i = 0; i < sessions; i++) {
+            tokens[i] = new Object();
+            VirtualDisplaySessions.put(tokens[i], session, Integer.MAX_VALUE);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (var token : tokens) {
+            VirtualDisplaySessions.remove(token);
+        }
+    }
+
+    @Benchmark
+    public Object get(Cursor cursor) {
+        var token = tokens[cursor.next];
+        cursor.next = cursor.next == tokens.length - 1 ? 0 : cursor.next + 1;
+        return VirtualDisplaySessions.get(token);
+    }
+
+    @Benchmark
+    public Object createAndRelease(Cursor cursor) {
+        VirtualDisplaySessions.put(cursor.token, session, Integer.MAX_VALUE);
+        return VirtualDisplaySessions.remove(cursor.token);
+    }
+}
@@ -0,0 +1,335 @@
+package io.github.lsposed.disableflagsecure;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Runs {@link DexScanner} against a small sample services.jar of two dex files, written by
+ * {@link SampleDex}, and checks which methods it reports, wrappers of wrappers and constructors
+ * included. The callers put the target invoke behind
+ * instructions of every width class and behind switch and array payloads; the decoys only carry
+ * invoke-looking code units inside literals and payloads, which a wrong width would decode.
+ * <p>
+ * {@code ./gradlew :benchmark:checkDexScanner}
+ */
+public final class DexScannerCheck {
+    private static final String WINDOW_STATE = "Lcom/android/server/wm/WindowState;";
+    private static final String CALLERS = "Lcom/android/server/wm/Callers;";
+    private static final String WRAPPER = "Lcom/android/server/wm/Wrapper;";
+    private static final String OTHER = "Lcom/android/server/wm/Other;";
+    private static final String CLIENT = "Lcom/android/server/wm/Client;";
+
+    private static final int NOP = 0x0000;
+    private static final int RETURN_VOID = 0x000e;
+
+    private DexScannerCheck() {
+    }
+
+    public static void main(String[] args) {
+        // classes.dex
+        var first = new SampleDex();
+        var target = first.method(WINDOW_STATE, "isSecureLocked");
+        var unrelated = first.method(WINDOW_STATE, "getOwningUid");
+        var otherTarget = first.method(OTHER, "isSecureLocked");
+        first.code(target, 0x000f); // return v0
+        // const/4, const/16, const, const-wide/16, const-wide, const-string, invoke-virtual, then the target
+        first.code(first.method(CALLERS, "widths"), padded(40,
+                0x0012, 0x0013, 0x0001, 0x0014, 0x0000, 0x0000, 0x0016, 0x0001,
+                0x0018, 0x1111, 0x2222, 0x3333, 0x4444, 0x001a, 0x0000,
+                0x106e, unrelated, 0x0000, 0x106e, target, 0x0000));
+        // goto over a packed-switch, sparse-switch and odd sized fill-array-data payload, then the target
+        first.code(first.method(CALLERS, "afterPayloads"), concat(
+                new int[]{0x002a, 28, 0}, // goto/32 +28
+                new int[]{NOP},
+                new int[]{0x0100, 2, 0x0000, 0x0000, 0x106e, target, 0x006e, target},
+                new int[]{0x0200, 1, 0x106e, target, 0x106e, target},
+                new int[]{0x0300, 1, 5, 0, 0x6e6e, 0x6e6e, 0x006e},
+                new int[]{NOP, NOP, NOP},
+                new int[]{0x106e, target, 0x0000, RETURN_VOID}));
+        // invoke-virtual/range and invoke-polymorphic
+        first.code(first.method(CALLERS, "range"), 0x0174, target, 0x0000, RETURN_VOID);
+        first.code(first.method(CALLERS, "polymorphic"), 0x10fa, unrelated, 0x0000, 0x0000,
+                0x106e, target, 0x0000, RETURN_VOID);
+        // Decoys: an invoke of the target only inside a const-wide literal and a payload
+        first.code(first.method(CALLERS, "constWide"), 0x0018, 0x106e, target, 0x0000, 0x0000, RETURN_VOID);
+        first.code(first.method(CALLERS, "onlyPayload"), RETURN_VOID, NOP,
+                0x0300, 2, 3, 0, 0x106e, target, 0x0000);
+        // Same name, other class
+        first.code(first.method(CALLERS, "otherClass"), 0x106e, otherTarget, 0x0000, RETURN_VOID);
+        // Small enough to be inlined, its callers count too
+        var wrapper = first.method(WRAPPER, "check", WINDOW_STATE);
+        first.code(wrapper, 0x1071, target, 0x0000, 0x000a, 0x000f);
+
+        // classes2.dex, calls into the first
+        var second = new SampleDex();
+        var wrapperRef = second.method(WRAPPER, "check", WINDOW_STATE);
+        var widthsRef = second.method(CALLERS, "widths");
+        var otherRef = second.method(OTHER, "isSecureLocked");
+        second.code(second.method(CLIENT, "useWrapper"), 0x1071, wrapperRef, 0x0000, RETURN_VOID);
+        second.code(second.method(CLIENT, "useWidths"), 0x106e, widthsRef, 0x0000, RETURN_VOID);
+        second.code(second.method(CLIENT, "useOther"), 0x106e, otherRef, 0x0000, RETURN_VOID);
+        // A wrapper of the wrapper, and a constructor calling it
+        var useWrapperRef = second.method(CLIENT, "useWrapper");
+        second.code(second.method(CLIENT, "<init>"), 0x1070, useWrapperRef, 0x0000, RETURN_VOID);
+        // Too large to be inlined, its callers do not count
+        var largeRef = second.method(CLIENT, "large");
+        second.code(largeRef, padded(40, 0x1070, useWrapperRef, 0x0000));
+        second.code(second.method(CLIENT, "useLarge"), 0x1070, largeRef, 0x0000, RETURN_VOID);
+
+        Path jar;
+        try {
+            jar = jar(first.build(), second.build());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        var expected = new TreeSet<>(List.of(
+                "com.android.server.wm.Callers#widths()",
+                "com.android.server.wm.Callers#afterPayloads()",
+                "com.android.server.wm.Callers#range()",
+                "com.android.server.wm.Callers#polymorphic()",
+                "com.android.server.wm.Wrapper#check(" + WINDOW_STATE + ")",
+                "com.android.server.wm.Client#useWrapper()",
+                "com.android.server.wm.Client#<init>()",
+                "com.android.server.wm.Client#large()"));
+        var passed = check("dex scanner", jar, expected, "com.android.server.wm.WindowState#isSecureLocked");
+        // Several targets in one scan, as for the surface call sites
+        expected.add("com.android.server.wm.Callers#otherClass()");
+        expected.add("com.android.server.wm.Client#useOther()");
+        passed &= check("dex scanner, two targets", jar, expected,
+                "com.android.server.wm.WindowState#isSecureLocked", "com.android.server.wm.Other#isSecureLocked");
+        try {
+            Files.delete(jar);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!passed) System.exit(1);
+    }
+
+    private static boolean check(String name, Path jar, Set<String> expected, String... targets) {
+        var found = new TreeSet<String>();
+        try {
+            for (var ref : new DexScanner(DexScanner.DEFAULT_INLINE_LIMIT, targets).scanJar(jar.toString())) {
+                found.add(ref.toString());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!found.equals(expected)) {
+            var missing = new TreeSet<>(expected);
+            missing.removeAll(found);
+            var unexpected = new TreeSet<>(found);
+            unexpected.removeAll(expected);
+            System.out.println("FAIL " + name + ": missing " + missing + ", unexpected " + unexpected);
+            return false;
+        }
+        System.out.println("PASS " + name + ": " + found.size() + " callers");
+        return true;
+    }
+
+    private static Path jar(ByteBuffer... dexFiles) throws IOException {
+        var jar = Files.createTempFile("services", ".jar");
+        try (var out = new ZipOutputStream(Files.newOutputStream(jar))) {
+            for (int i = 0; i < dexFiles.length; i++) {
+                out.putNextEntry(new ZipEntry(i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex"));
+                out.write(dexFiles[i].array());
+                out.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    private static int[] padded(int units, int... code) {
+        var padded = new int[Math.max(units, code.length + 1)];
+        System.arraycopy(code, 0, padded, 0, code.length);
+        padded[padded.length - 1] = RETURN_VOID;
+        return padded;
+    }
+
+    private static int[] concat(int[]... parts) {
+        var all = new ArrayList<Integer>();
+        for (var part : parts) {
+            for (var unit : part) all.add(unit);
+        }
+        var units = new int[all.size()];
+        for (int i = 0; i < units.length; i++) units[i] = all.get(i);
+        return units;
+    }
+
+    /**
+     * Writes the parts of a dex file DexScanner reads: the id tables, sorted as dex requires for
+     * strings and types, direct methods in class_data and their code items. Method ids keep the
+     * order they were declared in, so code can refer to them before the file is laid out.
+     */
+    static final class SampleDex {
+        private static final int HEADER_SIZE = 0x70;
+        private static final int NO_INDEX = -1;
+
+        private final List<String[]> methods = new ArrayList<>();
+        private final Map<Integer, int[]> code = new TreeMap<>();
+
+        /**
+         * @return method id, methods return void
+         */
+        int method(String classDescriptor, String name, String... parameterTypes) {
+            var method = new String[parameterTypes.length + 2];
+            method[0] = classDescriptor;
+            method[1] = name;
+            System.arraycopy(parameterTypes, 0, method, 2, parameterTypes.length);
+            methods.add(method);
+            return methods.size() - 1;
+        }
+
+        void code(int method, int... units) {
+            code.put(method, units);
+        }
+
+        ByteBuffer build() {
+            var strings = new TreeSet<String>();
+            var types = new TreeSet<String>();
+            for (var method : methods) {
+                types.add(method[0]);
+                strings.add(method[1]);
+                strings.add(shorty(method));
+                for (int i = 2; i < method.length; i++) types.add(method[i]);
+            }
+            types.add("V");
+            strings.addAll(types);
+            var stringIds = index(strings);
+            // Sorted by string id, which for a sorted string table is their own order
+            var typeIds = index(types);
+            var classes = new LinkedHashMap<String, List<Integer>>();
+            for (var method : code.keySet()) {
+                classes.computeIfAbsent(methods.get(method)[0], k -> new ArrayList<>()).add(method);
+            }
+
+            int stringIdsOff = HEADER_SIZE;
+            int typeIdsOff = stringIdsOff + strings.size() * 4;
+            int protoIdsOff = typeIdsOff + types.size() * 4;
+            int methodIdsOff = protoIdsOff + methods.size() * 12;
+            int classDefsOff = methodIdsOff + methods.size() * 8;
+            int dataOff = classDefsOff + classes.size() * 32;
+            var out = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            out.position(dataOff);
+
+            var stringData = new int[strings.size()];
+            int s = 0;
+            for (var string : strings) {
+                stringData[s++] = out.position();
+                uleb(out, string.length());
+                for (var c : string.toCharArray()) out.put((byte) c);
+                out.put((byte) 0);
+            }
+            var parameters = new int[methods.size()];
+            for (int m = 0; m < methods.size(); m++) {
+                var method = methods.get(m);
+                if (method.length == 2) continue;
+                align(out);
+                parameters[m] = out.position();
+                out.putInt(method.length - 2);
+                for (int i = 2; i < method.length; i++) out.putShort((short) (int) typeIds.get(method[i]));
+            }
+            var codeOffs = new TreeMap<Integer, Integer>();
+            for (var entry : code.entrySet()) {
+                align(out);
+                codeOffs.put(entry.getKey(), out.position());
+                out.putShort((short) 4).putShort((short) 1).putShort((short) 2).putShort((short) 0);
+                out.putInt(0);
+                out.putInt(entry.getValue().length);
+                for (var unit : entry.getValue()) out.putShort((short) unit);
+            }
+            var classData = new ArrayList<Integer>();
+            for (var methodsOfClass : classes.values()) {
+                classData.add(out.position());
+                uleb(out, 0);
+                uleb(out, 0);
+                uleb(out, methodsOfClass.size());
+                uleb(out, 0);
+                int previous = 0;
+                for (var method : methodsOfClass) {
+                    uleb(out, method - previous);
+                    previous = method;
+                    uleb(out, 0x0009); // public static
+                    uleb(out, codeOffs.get(method));
+                }
+            }
+            int fileSize = out.position();
+
+            for (int i = 0; i < stringData.length; i++) out.putInt(stringIdsOff + i * 4, stringData[i]);
+            int t = 0;
+            for (var type : types) out.putInt(typeIdsOff + t++ * 4, stringIds.get(type));
+            for (int m = 0; m < methods.size(); m++) {
+                var method = methods.get(m);
+                out.putInt(protoIdsOff + m * 12, stringIds.get(shorty(method)));
+                out.putInt(protoIdsOff + m * 12 + 4, typeIds.get("V"));
+                out.putInt(protoIdsOff + m * 12 + 8, parameters[m]);
+                out.putShort(methodIdsOff + m * 8, (short) (int) typeIds.get(method[0]));
+                out.putShort(methodIdsOff + m * 8 + 2, (short) m);
+                out.putInt(methodIdsOff + m * 8 + 4, stringIds.get(method[1]));
+            }
+            int c = 0;
+            for (var clazz : classes.keySet()) {
+                int def = classDefsOff + c * 32;
+                out.putInt(def, typeIds.get(clazz));
+                out.putInt(def + 4, 0x0001);
+                out.putInt(def + 8, NO_INDEX);
+                out.putInt(def + 16, NO_INDEX);
+                out.putInt(def + 24, classData.get(c));
+                c++;
+            }
+
+            out.put(0, "dex\n035\0".getBytes(java.nio.charset.StandardCharsets.US_ASCII));
+            out.putInt(0x20, fileSize);
+            out.putInt(0x24, HEADER_SIZE);
+            out.putInt(0x28, 0x12345678);
+            out.putInt(0x38, strings.size()).putInt(0x3c, stringIdsOff);
+            out.putInt(0x40, types.size()).putInt(0x44, typeIdsOff);
+            out.putInt(0x48, methods.size()).putInt(0x4c, protoIdsOff);
+            out.putInt(0x58, methods.size()).putInt(0x5c, methodIdsOff);
+            out.putInt(0x60, classes.size()).putInt(0x64, classDefsOff);
+            out.putInt(0x68, fileSize - dataOff).putInt(0x6c, dataOff);
+            var bytes = new byte[fileSize];
+            out.get(0, bytes);
+            return ByteBuffer.wrap(bytes);
+        }
+
+        private static String shorty(String[] method) {
+            var shorty = new StringBuilder("V");
+            for (int i = 2; i < method.length; i++) {
+                shorty.append(method[i].charAt(0) == '[' ? 'L' : method[i].charAt(0));
+            }
+            return shorty.toString();
+        }
+
+        private static Map<String, Integer> index(TreeSet<String> sorted) {
+            var index = new LinkedHashMap<String, Integer>();
+            for (var value : sorted) index.put(value, index.size());
+            return index;
+        }
+
+        private static void align(ByteBuffer out) {
+            while ((out.position() & 3) != 0) out.put((byte) 0);
+        }
+
+        private static void uleb(ByteBuffer out, int value) {
+            while ((value & ~0x7f) != 0) {
+                out.put((byte) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.put((byte) value);
+        }
+    }
+}
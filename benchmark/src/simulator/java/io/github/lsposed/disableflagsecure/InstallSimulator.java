@@ -0,0 +1,380 @@
+package io.github.lsposed.disableflagsecure;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Boots the module against synthetic system_server and app classes of every supported SDK
+ * level and ROM, and checks which hooks it installs. Each scenario runs in a fresh JVM, so the
+ * reported install time and class lookups are those of a cold boot.
+ * <p>
+ * {@code ./gradlew :benchmark:simulateInstall}
+ */
+public final class InstallSimulator {
+    static final String SYSTEM = "system";
+
+    private static final String[] SYSTEM_SERVER = {
+            "com.android.server.wm.WindowState",
+            "com.android.server.wm.Session",
+            "com.android.server.wm.WindowStateAnimator",
+            "com.android.server.wm.WindowManagerService",
+            "com.android.server.wm.RootWindowContainer",
+            "com.android.server.wm.ActivityTaskManagerService",
+            "com.android.server.am.ActivityManagerService",
+            "com.android.server.display.VirtualDisplayAdapter",
+            "android.hardware.display.IVirtualDisplayCallback",
+            "android.hardware.display.VirtualDisplayConfig",
+            "android.app.IScreenCaptureObserver",
+            "android.window.IScreenRecordingCallback"};
+    // android.view.SurfaceControl (S~T), android.view.IWindow and android.os.IBinder come from the stubs,
+    // the module and the benchmarks link against them
+    // U~V
+    private static final String[] SCREEN_CAPTURE = {
+            "android.window.ScreenCapture",
+            "com.android.server.display.DisplayControl"};
+    // Baklava
+    private static final String[] SCREEN_CAPTURE_INTERNAL = {
+            "android.window.ScreenCapture",
+            "android.window.ScreenCaptureInternal",
+            "com.android.server.display.DisplayControl"};
+
+    // Bookkeeping only, the hooks allowed to be installed after the module returned to the framework
+    private static final Set<String> DEFERRABLE = Set.of("DumpHooker", "VirtualDisplayReleaseHooker");
+
+    private static final String[] CALL_SITES = {
+            "WindowStateAnimator#createSurfaceLocked SurfaceCallSiteHooker",
+            "WindowState#setInitialSurfaceControlProperties SurfaceCallSiteHooker",
+            "VirtualDisplayAdapter#createVirtualDisplayLocked VirtualDisplayCallSiteHooker"};
+    private static final String[] COMMON_HOOKS = {
+            "VirtualDisplayAdapter#createVirtualDisplayLocked CreateVirtualDisplayLockedHooker",
+            "WindowState#isSecureLocked SecureLockedHooker",
+            "WindowManagerService#dump DumpHooker",
+            "VirtualDisplayAdapter#releaseVirtualDisplayLocked VirtualDisplayReleaseHooker",
+            "VirtualDisplayAdapter#handleBinderDiedLocked VirtualDisplayReleaseHooker",
+            "VirtualDisplayAdapter#handleMediaProjectionStoppedLocked VirtualDisplayReleaseHooker"};
+    private static final String[] S_T_HOOKS = {
+            "SurfaceControl#nativeCaptureDisplay ScreenCaptureHooker",
+            "SurfaceControl#nativeCaptureLayers ScreenCaptureHooker",
+            "SurfaceControl#createDisplay CreateDisplayHooker",
+            "ActivityManagerService#checkPermission CheckPermissionHooker",
+            "SurfaceControl$ScreenshotHardwareBuffer#containsSecureLayers ContainsSecureLayersHooker"};
+    private static final String[] U_HOOKS = {
+            "ScreenCapture#nativeCaptureDisplay ScreenCaptureHooker",
+            "ScreenCapture#nativeCaptureLayers ScreenCaptureHooker",
+            "DisplayControl#createDisplay CreateDisplayHooker",
+            "ScreenCapture$ScreenshotHardwareBuffer#containsSecureLayers ContainsSecureLayersHooker",
+            "ActivityTaskManagerService#registerScreenCaptureObserver ReturnNullHooker"};
+    private static final String[] V_HOOKS = {
+            "ScreenCapture#nativeCaptureDisplay ScreenCaptureHooker",
+            "ScreenCapture#nativeCaptureLayers ScreenCaptureHooker",
+            "DisplayControl#createVirtualDisplay CreateDisplayHooker",
+            "WindowManagerService#registerScreenRecordingCallback ReturnFalseHooker",
+            "ScreenCapture$ScreenshotHardwareBuffer#containsSecureLayers ContainsSecureLayersHooker",
+            "ActivityTaskManagerService#registerScreenCaptureObserver ReturnNullHooker"};
+    private static final String[] BAKLAVA_HOOKS = {
+            "ScreenCaptureInternal#nativeCaptureDisplay ScreenCaptureHooker",
+            "ScreenCaptureInternal#nativeCaptureLayers ScreenCaptureHooker",
+            "DisplayControl#createVirtualDisplay CreateDisplayHooker",
+            "WindowManagerService#registerScreenRecordingCallback ReturnFalseHooker",
+            "ScreenCapture$ScreenshotHardwareBuffer#containsSecureLayers ContainsSecureLayersHooker",
+            "ActivityTaskManagerService#registerScreenCaptureObserver ReturnNullHooker"};
+
+    static final class Scenario {
+        final String name;
+        final String process;
+        final int sdk;
+        final Map<String, String> properties = new LinkedHashMap<>();
+        // Remote preferences of the module, see Config
+        final Map<String, Object> preferences = new LinkedHashMap<>();
+        final Set<String> classes = new TreeSet<>();
+        final Set<String> expected = new TreeSet<>();
+        // HookCache of the build from earlier boots
+        final Map<String, String> cache = new LinkedHashMap<>();
+        // Activity resumes after loading, for the misconfiguration guard
+        int resumes;
+        // Upper bounds on the class lookups of a boot, and on those that find nothing
+        int maxLookups;
+        int maxMisses;
+
+        Scenario(String name, String process, int sdk) {
+            this.name = name;
+            this.process = process;
+            this.sdk = sdk;
+        }
+
+        Scenario property(String key, String value) {
+            properties.put(key, value);
+            return this;
+        }
+
+        Scenario preference(String key, Object value) {
+            preferences.put(key, value);
+            return this;
+        }
+
+        Scenario cache(String key, String value) {
+            cache.put(key, value);
+            return this;
+        }
+
+        Scenario classes(String... names) {
+            classes.addAll(List.of(names));
+            return this;
+        }
+
+        Scenario resumes(int resumes) {
+            this.resumes = resumes;
+            return this;
+        }
+
+        Scenario lookups(int maxLookups, int maxMisses) {
+            this.maxLookups = maxLookups;
+            this.maxMisses = maxMisses;
+            return this;
+        }
+
+        Scenario expect(String... hooks) {
+            expected.addAll(List.of(hooks));
+            return this;
+        }
+
+        Scenario without(String... hooks) {
+            expected.removeAll(List.of(hooks));
+            return this;
+        }
+    }
+
+    static final List<Scenario> SCENARIOS = List.of(
+            system("aosp-31", 31).expect(S_T_HOOKS),
+            system("aosp-32", 32).expect(S_T_HOOKS),
+            system("aosp-33", 33).expect(S_T_HOOKS),
+            system("aosp-34", 34).classes(SCREEN_CAPTURE).expect(U_HOOKS),
+            system("aosp-35", 35).classes(SCREEN_CAPTURE).expect(V_HOOKS),
+            system("aosp-36", 36).classes(SCREEN_CAPTURE_INTERNAL).expect(BAKLAVA_HOOKS),
+            // Hooks chosen for U on a V build
+            system("aosp-35-as-34", 35).preference("sdk", 34).classes(SCREEN_CAPTURE).expect(U_HOOKS),
+            // CaptureArgs overridden when constructed, the native captures are left alone
+            system("aosp-35-on-build", 35).preference("capture_on_build", true).classes(SCREEN_CAPTURE)
+                    .expect("ScreenCapture$CaptureArgs#<init> CaptureArgsHooker",
+                            "DisplayControl#createVirtualDisplay CreateDisplayHooker",
+                            "WindowManagerService#registerScreenRecordingCallback ReturnFalseHooker",
+                            "ScreenCapture$ScreenshotHardwareBuffer#containsSecureLayers ContainsSecureLayersHooker",
+                            "ActivityTaskManagerService#registerScreenCaptureObserver ReturnNullHooker"),
+            // FLAG_SECURE cleared per window, isSecureLocked and its callers left alone
+            system("aosp-35-indexed", 35).preference("secure_index", true).lookups(40, 0).classes(SCREEN_CAPTURE).expect(V_HOOKS)
+                    .without("WindowState#isSecureLocked SecureLockedHooker")
+                    .expect("WindowManagerService#addWindow SecureWindowHooker",
+                            "WindowManagerService#relayoutWindow SecureWindowHooker",
+                            "WindowState#removeImmediately SecureWindowRemovedHooker"),
+            // The surface call sites are kept out of their callers instead of isSecureLocked
+            system("aosp-35-indexed-deopt", 35).preference("secure_index", true).lookups(40, 0).preference("deopt_stats", true)
+                    .classes(SCREEN_CAPTURE).expect(V_HOOKS)
+                    .without("WindowState#isSecureLocked SecureLockedHooker")
+                    .expect("WindowManagerService#addWindow SecureWindowHooker",
+                            "WindowManagerService#relayoutWindow SecureWindowHooker",
+                            "WindowState#removeImmediately SecureWindowRemovedHooker",
+                            "WindowManagerService#relayoutWindow DeoptimizedHooker",
+                            "WindowManagerService#createSurfaceControl DeoptimizedHooker"),
+            // Every deoptimized method also gets the accounting hooks
+            system("aosp-35-deopt-stats", 35).preference("deopt_stats", true).classes(SCREEN_CAPTURE).expect(V_HOOKS)
+                    .expect("RootWindowContainer$$ExternalSyntheticLambda3#accept DeoptimizedHooker",
+                            "WindowManagerService#relayoutWindow DeoptimizedHooker",
+                            "WindowStateAnimator#createSurfaceLocked DeoptimizedHooker"),
+            // Nothing learned for this build yet, so everything is installed and learns
+            system("aosp-33-prune", 33).preference("prune", "on").preference("prune_keep", "create_display")
+                    .expect(S_T_HOOKS),
+            // Learned: checkPermission and createDisplay never used, createDisplay kept by prune_keep
+            system("aosp-33-pruned", 33).preference("prune", "on").preference("prune_keep", "create_display")
+                    .cache("usage", String.valueOf(HookUsage.LEARN_BOOTS))
+                    .cache("usage.com.android.server.am.ActivityManagerService#checkPermission", "")
+                    .cache("usage.android.view.SurfaceControl#createDisplay", "")
+                    .expect(S_T_HOOKS).without("ActivityManagerService#checkPermission CheckPermissionHooker"),
+            system("hyperos-35", 35).property("ro.mi.os.version.name", "OS2.0")
+                    .classes(SCREEN_CAPTURE).classes("com.android.server.wm.WindowManagerServiceImpl")
+                    .expect(V_HOOKS).expect("WindowManagerServiceImpl#notAllowCaptureDisplay ReturnFalseHooker"),
+            system("oneui-34", 34).property("ro.build.version.oneui", "60100")
+                    .classes(SCREEN_CAPTURE).classes("com.android.server.wm.WmScreenshotController")
+                    .expect(U_HOOKS).expect("WmScreenshotController#canBeScreenshotTarget ReturnTrueHooker"),
+            // A port without ro.build.version.oneui
+            system("oneui-port-33", 33).property("android.manufacturer", "samsung")
+                    .classes("com.android.server.wm.WmScreenshotController")
+                    .expect(S_T_HOOKS).expect("WmScreenshotController#canBeScreenshotTarget ReturnTrueHooker"),
+            system("coloros-35", 35).property("ro.build.version.oplusrom", "V15.0.0")
+                    .classes(SCREEN_CAPTURE).classes("com.android.server.wm.OplusLongshotMainWindow")
+                    .expect(V_HOOKS).expect("OplusLongshotMainWindow#hasSecure ReturnFalseHooker"),
+            app("systemui-33", "com.android.systemui", 33)
+                    .expect("SurfaceControl#nativeCaptureDisplay ScreenCaptureHooker",
+                            "SurfaceControl#nativeCaptureLayers ScreenCaptureHooker"),
+            app("systemui-35", "com.android.systemui", 35).classes(SCREEN_CAPTURE),
+            app("systemui-33-disabled", "com.android.systemui", 33).preference("package.com.android.systemui", false),
+            app("flyme-systemuiex-33", "com.flyme.systemuiex", 33).property("ro.build.flyme.version", "10")
+                    .expect("SurfaceControl#nativeCaptureDisplay ScreenCaptureHooker",
+                            "SurfaceControl#nativeCaptureLayers ScreenCaptureHooker",
+                            "SurfaceControl$ScreenshotHardwareBuffer#containsSecureLayers ContainsSecureLayersHooker"),
+            app("oplus-screenshot-35", "com.oplus.screenshot", 35).property("ro.build.version.oplusrom", "V15.0.0")
+                    .classes(SCREEN_CAPTURE).classes("com.oplus.screenshot.OplusScreenCapture")
+                    .expect("ScreenCapture#nativeCaptureDisplay ScreenCaptureHooker",
+                            "ScreenCapture#nativeCaptureLayers ScreenCaptureHooker",
+                            "ScreenCapture$ScreenshotHardwareBuffer#containsSecureLayers ContainsSecureLayersHooker",
+                            "OplusScreenCapture$CaptureArgs$Builder#setUid OplusScreenCaptureHooker"),
+            app("oplus-appplatform-33", "com.oplus.appplatform", 33).property("ro.build.version.oplusrom", "V13.1.0")
+                    .expect("SurfaceControl#nativeCaptureDisplay ScreenCaptureHooker",
+                            "SurfaceControl#nativeCaptureLayers ScreenCaptureHooker",
+                            "SurfaceControl$ScreenshotHardwareBuffer#containsSecureLayers ContainsSecureLayersHooker"),
+            // Module enabled for an app by mistake
+            app("misconfigured-35", "com.example", 35).expect("Activity#onResume ToastHooker"),
+            // The guard warns once and unhooks itself
+            app("misconfigured-35-resumed", "com.example", 35).resumes(3),
+            // Left out in the settings, no guard
+            app("misconfigured-35-disabled", "com.example", 35).preference("package.com.example", false));
+
+    // The fallback deoptimization probes each numbered class until the first one missing
+    private static Scenario system(String name, int sdk) {
+        return new Scenario(name, SYSTEM, sdk).classes(SYSTEM_SERVER).expect(CALL_SITES).expect(COMMON_HOOKS)
+                .lookups(48, 2);
+    }
+
+    private static Scenario app(String name, String packageName, int sdk) {
+        return new Scenario(name, packageName, sdk).lookups(8, 0);
+    }
+
+    private InstallSimulator() {
+    }
+
+    /**
+     * Without arguments runs every scenario; {@code --boot <scenario>} is the child side.
+     */
+    public static void main(String[] args) throws Exception {
+        var fixtures = System.getProperty("simulator.fixtures");
+        if (fixtures == null) {
+            System.err.println("-Dsimulator.fixtures=<fixture classes> is required");
+            System.exit(2);
+        }
+        if (args.length == 2 && "--boot".equals(args[0])) {
+            SimulatedDevice.boot(find(args[1]), fixtures, System.out);
+            System.exit(0);
+        }
+
+        var failed = 0;
+        for (var scenario : SCENARIOS) {
+            if (args.length > 0 && !List.of(args).contains(scenario.name)) continue;
+            if (!run(scenario, fixtures)) failed++;
+        }
+        if (failed > 0) {
+            System.out.println(failed + " scenario(s) failed");
+            System.exit(1);
+        }
+    }
+
+    private static Scenario find(String name) {
+        for (var scenario : SCENARIOS) {
+            if (scenario.name.equals(name)) return scenario;
+        }
+        throw new IllegalArgumentException("unknown scenario " + name);
+    }
+
+    private static boolean run(Scenario scenario, String fixtures) throws IOException, InterruptedException {
+        var command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dsimulator.fixtures=" + fixtures);
+        command.add("-Dandroid.sdk=" + scenario.sdk);
+        command.add("-Dandroid.fingerprint=simulator/" + scenario.name);
+        // A data directory of its own, with the cache of the earlier boots
+        var data = Files.createTempDirectory("simulator-");
+        var system = data.resolve("system").toFile();
+        if (!system.mkdir()) throw new IOException("mkdir " + system + " failed");
+        if (!scenario.cache.isEmpty()) {
+            var cache = new HookCache(new File(system, "disableflagsecure.cache"), "simulator/" + scenario.name);
+            scenario.cache.forEach(cache::put);
+            cache.save();
+        }
+        command.add("-Dandroid.data=" + data);
+        for (var property : scenario.properties.entrySet()) {
+            // Build fields are set directly, the rest goes through SystemProperties
+            var key = property.getKey().startsWith("android.") ? property.getKey() : "android.prop." + property.getKey();
+            command.add("-D" + key + "=" + property.getValue());
+        }
+        command.add(InstallSimulator.class.getName());
+        command.add("--boot");
+        command.add(scenario.name);
+
+        var process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        var hooks = new TreeSet<String>();
+        var early = new TreeSet<String>();
+        var logs = new ArrayList<String>();
+        var deoptimized = 0;
+        long lookups = 0, misses = 0, bootPath = 0, total = 0;
+        try (var reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(SimulatedDevice.HOOK)) {
+                    hooks.add(line.substring(SimulatedDevice.HOOK.length()));
+                } else if (line.startsWith(SimulatedDevice.EARLY)) {
+                    early.add(line.substring(SimulatedDevice.EARLY.length()));
+                } else if (line.startsWith(SimulatedDevice.DEOPTIMIZE)) {
+                    deoptimized++;
+                } else if (line.startsWith(SimulatedDevice.LOOKUPS)) {
+                    lookups = Long.parseLong(line.substring(SimulatedDevice.LOOKUPS.length()));
+                } else if (line.startsWith(SimulatedDevice.MISSES)) {
+                    misses = Long.parseLong(line.substring(SimulatedDevice.MISSES.length()));
+                } else if (line.startsWith(SimulatedDevice.BOOT_PATH)) {
+                    bootPath = Long.parseLong(line.substring(SimulatedDevice.BOOT_PATH.length()));
+                } else if (line.startsWith(SimulatedDevice.TOTAL)) {
+                    total = Long.parseLong(line.substring(SimulatedDevice.TOTAL.length()));
+                } else if (line.startsWith(SimulatedDevice.LOG)) {
+                    logs.add(line.substring(SimulatedDevice.LOG.length()));
+                } else {
+                    logs.add(line);
+                }
+            }
+        }
+        var exit = process.waitFor();
+        try (var files = Files.walk(data)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+
+        var missing = new TreeSet<>(scenario.expected);
+        missing.removeAll(hooks);
+        var unexpected = new TreeSet<>(hooks);
+        unexpected.removeAll(scenario.expected);
+        // Deciding hooks installed late would miss the windows and captures of early boot
+        var deferred = 0;
+        var late = new TreeSet<String>();
+        for (var hook : hooks) {
+            if (early.contains(hook)) continue;
+            deferred++;
+            if (!DEFERRABLE.contains(hook.substring(hook.indexOf(' ') + 1))) late.add(hook);
+        }
+        var tooManyLookups = lookups > scenario.maxLookups || misses > scenario.maxMisses;
+        var passed = exit == 0 && missing.isEmpty() && unexpected.isEmpty() && late.isEmpty() && !tooManyLookups;
+
+        System.out.printf("%s %-24s %2d hooks (%2d deferred), %2d deoptimized, %3d class lookups (%d missing), boot path %6.2fms, total %6.2fms%n",
+                passed ? "PASS" : "FAIL", scenario.name, hooks.size(), deferred, deoptimized, lookups, misses,
+                bootPath / 1e6, total / 1e6);
+        if (!passed) {
+            if (exit != 0) System.out.println("  exit code " + exit);
+            for (var hook : missing) System.out.println("  missing " + hook);
+            for (var hook : unexpected) System.out.println("  unexpected " + hook);
+            for (var hook : late) System.out.println("  installed after boot " + hook);
+            if (tooManyLookups) {
+                System.out.println("  class lookups over the bound of " + scenario.maxLookups + " (" +
+                        scenario.maxMisses + " missing)");
+            }
+            for (var log : logs) System.out.println("  | " + log);
+        }
+        return passed;
+    }
+}
@@ -0,0 +1,323 @@
+package io.github.lsposed.disableflagsecure;
+
+import android.app.Activity;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.libxposed.api.XposedInterface;
+import io.github.libxposed.api.XposedModuleInterface;
+
+/**
+ * One boot of one scenario, in a JVM whose {@code android.*} system properties already
+ * describe the device. Prints what the module did, one fact per line, for {@link InstallSimulator}.
+ */
+final class SimulatedDevice {
+    static final String HOOK = "hook ";
+    // Installed by the time the module returned to the framework
+    static final String EARLY = "early ";
+    static final String DEOPTIMIZE = "deoptimize ";
+    static final String LOOKUPS = "lookups ";
+    static final String MISSES = "misses ";
+    static final String BOOT_PATH = "boot ";
+    static final String TOTAL = "total ";
+    static final String LOG = "log ";
+
+    private static final String GUARD = "Activity#onResume ToastHooker";
+
+    /**
+     * Serves the fixture classes of the scenario only, and counts every lookup the module makes.
+     */
+    static final class FixtureClassLoader extends URLClassLoader {
+        private final Set<String> visible;
+        final AtomicInteger lookups = new AtomicInteger();
+        final AtomicInteger misses = new AtomicInteger();
+
+        FixtureClassLoader(URL[] urls, Set<String> visible, ClassLoader parent) {
+            super(urls, parent);
+            this.visible = visible;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            lookups.incrementAndGet();
+            try {
+                return super.loadClass(name, resolve);
+            } catch (ClassNotFoundException e) {
+                misses.incrementAndGet();
+                throw e;
+            }
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            var nested = name.indexOf('$');
+            if (!visible.contains(nested < 0 ? name : name.substring(0, nested))) {
+                throw new ClassNotFoundException(name);
+            }
+            return super.findClass(name);
+        }
+    }
+
+    /**
+     * An Activity resuming, as the framework hands it to the guard.
+     */
+    static final class ResumeCallback implements XposedInterface.BeforeHookCallback {
+        private final Activity activity = new Activity();
+
+        @Override
+        public Member getMember() {
+            return null;
+        }
+
+        @Override
+        public Object getThisObject() {
+            return activity;
+        }
+
+        @Override
+        public Object[] getArgs() {
+            return new Object[0];
+        }
+
+        @Override
+        public void returnAndSkip(Object result) {
+        }
+
+        @Override
+        public void throwAndSkip(Throwable throwable) {
+        }
+    }
+
+    /**
+     * Read-only remote preferences holding the scenario's settings.
+     */
+    static final class SimulatedPreferences implements SharedPreferences {
+        private final Map<String, Object> values;
+
+        SimulatedPreferences(Map<String, Object> values) {
+            this.values = values;
+        }
+
+        @Override
+        public Map<String, ?> getAll() {
+            return values;
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return (String) values.getOrDefault(key, defValue);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return (Set<String>) values.getOrDefault(key, defValues);
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return (Integer) values.getOrDefault(key, defValue);
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return (Long) values.getOrDefault(key, defValue);
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return (Float) values.getOrDefault(key, defValue);
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return (Boolean) values.getOrDefault(key, defValue);
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            throw new UnsupportedOperationException("remote preferences are read only");
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+    }
+
+    /**
+     * The framework side of the module: records hooks and deoptimizations instead of doing them.
+     */
+    static final class RecordingXposed implements XposedInterface {
+        private final Map<String, Object> preferences;
+        final Set<String> hooks = Collections.synchronizedSet(new TreeSet<>());
+        final Set<String> deoptimized = Collections.synchronizedSet(new TreeSet<>());
+        final List<String> logs = Collections.synchronizedList(new ArrayList<>());
+        // Deferred hooks wait for the boot path to return, so what is early does not depend on timing
+        final CountDownLatch returned = new CountDownLatch(1);
+
+        RecordingXposed(Map<String, Object> preferences) {
+            this.preferences = preferences;
+        }
+
+        @Override
+        public <T extends Hooker> MethodUnhooker<Method> hook(Method origin, Class<T> hooker) {
+            return record(origin, name(origin), hooker);
+        }
+
+        @Override
+        public <T, U extends Hooker> MethodUnhooker<Constructor<T>> hook(Constructor<T> origin, Class<U> hooker) {
+            return record(origin, name(origin.getDeclaringClass()) + "#<init>", hooker);
+        }
+
+        private <M> MethodUnhooker<M> record(M origin, String name, Class<? extends Hooker> hooker) {
+            if (Thread.currentThread().getName().startsWith("DisableFlagSecure-")) {
+                try {
+                    returned.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            hooks.add(name + " " + hooker.getSimpleName());
+            return new MethodUnhooker<>() {
+                @Override
+                public M getOrigin() {
+                    return origin;
+                }
+
+                @Override
+                public void unhook() {
+                    hooks.remove(name + " " + hooker.getSimpleName());
+                }
+            };
+        }
+
+        @Override
+        public boolean deoptimize(Method method) {
+            deoptimized.add(name(method));
+            return true;
+        }
+
+        @Override
+        public <T> boolean deoptimize(Constructor<T> constructor) {
+            deoptimized.add(name(constructor.getDeclaringClass()) + "#<init>");
+            return true;
+        }
+
+        @Override
+        public void log(String message) {
+            logs.add(message);
+        }
+
+        @Override
+        public void log(String message, Throwable throwable) {
+            logs.add(message + ": " + throwable);
+        }
+
+        @Override
+        public SharedPreferences getRemotePreferences(String group) {
+            return new SimulatedPreferences(preferences);
+        }
+
+        private static String name(Method method) {
+            return name(method.getDeclaringClass()) + "#" + method.getName();
+        }
+
+        private static String name(Class<?> clazz) {
+            var name = clazz.getName();
+            return name.substring(name.lastIndexOf('.') + 1);
+        }
+    }
+
+    private SimulatedDevice() {
+    }
+
+    static void boot(InstallSimulator.Scenario scenario, String fixtures, PrintStream out)
+            throws MalformedURLException, InterruptedException {
+        var paths = fixtures.split(File.pathSeparator);
+        var urls = new URL[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            urls[i] = new File(paths[i]).toURI().toURL();
+        }
+        var classLoader = new FixtureClassLoader(urls, scenario.classes, SimulatedDevice.class.getClassLoader());
+        var xposed = new RecordingXposed(scenario.preferences);
+        var module = new DisableFlagSecure(xposed, new XposedModuleInterface.ModuleLoadedParam() {
+        });
+
+        var start = System.nanoTime();
+        if (scenario.process.equals(InstallSimulator.SYSTEM)) {
+            module.onSystemServerLoaded(() -> classLoader);
+        } else {
+            module.onPackageLoaded(new XposedModuleInterface.PackageLoadedParam() {
+                @Override
+                public String getPackageName() {
+                    return scenario.process;
+                }
+
+                @Override
+                public ClassLoader getClassLoader() {
+                    return classLoader;
+                }
+
+                @Override
+                public boolean isFirstPackage() {
+                    return true;
+                }
+            });
+        }
+        var bootPath = System.nanoTime() - start;
+        // The first window or capture could come right now
+        List<String> early;
+        synchronized (xposed.hooks) {
+            early = new ArrayList<>(xposed.hooks);
+        }
+        xposed.returned.countDown();
+        for (int i = 0; i < scenario.resumes; i++) {
+            if (xposed.hooks.contains(GUARD)) DisableFlagSecure.ToastHooker.before(new ResumeCallback());
+        }
+        // Deferred hooks run on the scheduler's workers, which exit once the ready actions ran
+        for (var thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("DisableFlagSecure-")) thread.join();
+        }
+        var total = System.nanoTime() - start;
+
+        synchronized (xposed.hooks) {
+            for (var hook : xposed.hooks) out.println(HOOK + hook);
+        }
+        for (var hook : early) out.println(EARLY + hook);
+        synchronized (xposed.deoptimized) {
+            for (var method : xposed.deoptimized) out.println(DEOPTIMIZE + method);
+        }
+        out.println(LOOKUPS + classLoader.lookups.get());
+        out.println(MISSES + classLoader.misses.get());
+        out.println(BOOT_PATH + bootPath);
+        out.println(TOTAL + total);
+        synchronized (xposed.logs) {
+            for (var log : xposed.logs) out.println(LOG + log.replace('\n', ' '));
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package io.github.lsposed.disableflagsecure;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Decodes what {@link TraceExporter} writes for a known snapshot and checks it field by field
+ * against perfetto/protos: the clock snapshot, the process and thread track descriptors, and one
+ * begin/end TrackEvent pair per span carrying the name interned in {@link TraceBuffer}.
+ * <p>
+ * {@code ./gradlew :benchmark:checkTraceExport}
+ */
+public final class TraceExportCheck {
+    // perfetto.protos.TracePacket
+    private static final int PACKET_TIMESTAMP = 8;
+    private static final int PACKET_SEQUENCE_ID = 10;
+    private static final int PACKET_TRACK_EVENT = 11;
+    private static final int PACKET_SEQUENCE_FLAGS = 13;
+    private static final int PACKET_CLOCK_SNAPSHOT = 6;
+    private static final int PACKET_TIMESTAMP_CLOCK_ID = 58;
+    private static final int PACKET_TRACK_DESCRIPTOR = 60;
+    // perfetto.protos.ClockSnapshot / ClockSnapshot.Clock
+    private static final int SNAPSHOT_CLOCKS = 1;
+    private static final int CLOCK_ID = 1;
+    private static final int CLOCK_TIMESTAMP = 2;
+    // perfetto.protos.TrackDescriptor / ProcessDescriptor / ThreadDescriptor
+    private static final int TRACK_UUID = 1;
+    private static final int TRACK_PARENT_UUID = 5;
+    private static final int TRACK_PROCESS = 3;
+    private static final int TRACK_THREAD = 4;
+    private static final int PROCESS_PID = 1;
+    private static final int PROCESS_NAME = 6;
+    private static final int THREAD_PID = 1;
+    private static final int THREAD_TID = 2;
+    // perfetto.protos.TrackEvent
+    private static final int EVENT_TYPE = 9;
+    private static final int EVENT_TRACK_UUID = 11;
+    private static final int EVENT_NAME = 23;
+
+    private static final int PID = 1234;
+    private static final int TID_MAIN = 1234;
+    private static final int TID_WORKER = 1301;
+
+    private static int failures;
+
+    private TraceExportCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        var resolve = TraceBuffer.RESOLVE;
+        var hook = TraceBuffer.name("SecureLockedHooker");
+        // The names as interned by the module, the exporter looks them up by id
+        var snapshot = new TraceBuffer.Snapshot(3, TraceBuffer.snapshot().table);
+        // resolve on main, a hooker nested in it, and one on a worker ending as the next begins
+        snapshot.add(100, 400, resolve, TID_MAIN);
+        snapshot.add(150, 250, hook, TID_MAIN);
+        snapshot.add(50, 100, hook, TID_WORKER);
+
+        var out = new ByteArrayOutputStream();
+        TraceExporter.write(out, snapshot, PID, "system_server", 1_000, 5_000);
+        var packets = new ArrayList<Message>();
+        for (var field : new Message(out.toByteArray()).fields) {
+            expect(field.number == 1 && field.wireType == 2, "Trace.packet is field 1, length delimited");
+            packets.add(new Message(field.bytes));
+        }
+        expect(packets.size() == 1 + 1 + 2 + 6, "clock, process, 2 threads and 6 events, got " + packets.size());
+
+        var clock = packets.get(0);
+        expect(clock.varint(PACKET_SEQUENCE_FLAGS) == 1, "first packet clears incremental state");
+        var clocks = clock.message(PACKET_CLOCK_SNAPSHOT).all(SNAPSHOT_CLOCKS);
+        expect(clocks.size() == 2, "two clocks in the snapshot");
+        expect(clocks.get(0).varint(CLOCK_ID) == 3 && clocks.get(0).varint(CLOCK_TIMESTAMP) == 1_000,
+                "CLOCK_MONOTONIC at export");
+        expect(clocks.get(1).varint(CLOCK_ID) == 6 && clocks.get(1).varint(CLOCK_TIMESTAMP) == 5_000,
+                "CLOCK_BOOTTIME at export");
+
+        var sequence = clock.varint(PACKET_SEQUENCE_ID);
+        for (var packet : packets) {
+            expect(packet.varint(PACKET_SEQUENCE_ID) == sequence, "every packet on one sequence");
+        }
+
+        var process = packets.get(1).message(PACKET_TRACK_DESCRIPTOR);
+        expect(process.varint(TRACK_UUID) == PID, "process track uuid is the pid");
+        expect(process.message(TRACK_PROCESS).varint(PROCESS_PID) == PID, "process descriptor pid");
+        expect("system_server".equals(process.message(TRACK_PROCESS).string(PROCESS_NAME)),
+                "process descriptor name");
+
+        var threads = new ArrayList<Long>();
+        for (int i = 2; i < 4; i++) {
+            var track = packets.get(i).message(PACKET_TRACK_DESCRIPTOR);
+            var thread = track.message(TRACK_THREAD);
+            expect(track.varint(TRACK_PARENT_UUID) == PID, "thread track under the process");
+            expect(thread.varint(THREAD_PID) == PID, "thread descriptor pid");
+            expect(track.varint(TRACK_UUID) == ((long) PID << 32 | thread.varint(THREAD_TID)),
+                    "thread track uuid is pid:tid");
+            threads.add(track.varint(TRACK_UUID));
+        }
+        var main = (long) PID << 32 | TID_MAIN;
+        var worker = (long) PID << 32 | TID_WORKER;
+        expect(threads.equals(List.of(main, worker)), "one track per thread, in first seen order");
+
+        // Timestamp order, the worker end at 100 before the main begin at 100
+        long[][] expected = {
+                {50, 1, worker}, {100, 2, worker}, {100, 1, main}, {150, 1, main}, {250, 2, main}, {400, 2, main}};
+        String[] names = {"SecureLockedHooker", null, "resolve", "SecureLockedHooker", null, null};
+        for (int i = 0; i < expected.length; i++) {
+            var packet = packets.get(4 + i);
+            var event = packet.message(PACKET_TRACK_EVENT);
+            var label = "event " + i;
+            expect(packet.varint(PACKET_TIMESTAMP) == expected[i][0], label + " timestamp");
+            expect(packet.varint(PACKET_TIMESTAMP_CLOCK_ID) == 3, label + " on CLOCK_MONOTONIC");
+            expect(event.varint(EVENT_TYPE) == expected[i][1], label + " slice begin/end");
+            expect(event.varint(EVENT_TRACK_UUID) == expected[i][2], label + " track");
+            expect(Objects.equals(event.string(EVENT_NAME), names[i]),
+                    label + " name " + names[i] + ", got " + event.string(EVENT_NAME));
+        }
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("PASS trace export: " + packets.size() + " packets, " + out.size() + " bytes");
+    }
+
+    private static void expect(boolean condition, String what) {
+        if (condition) return;
+        failures++;
+        System.out.println("FAIL trace export: " + what);
+    }
+
+    private static final class Field {
+        final int number;
+        final int wireType;
+        final long value;
+        final byte[] bytes;
+
+        Field(int number, int wireType, long value, byte[] bytes) {
+            this.number = number;
+            this.wireType = wireType;
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Just enough protobuf decoding for varint and length delimited fields.
+     */
+    private static final class Message {
+        final List<Field> fields = new ArrayList<>();
+
+        Message(byte[] data) {
+            var position = new int[1];
+            while (position[0] < data.length) {
+                var tag = readVarint(data, position);
+                var number = (int) (tag >>> 3);
+                var wireType = (int) (tag & 7);
+                switch (wireType) {
+                    case 0:
+                        fields.add(new Field(number, wireType, readVarint(data, position), null));
+                        break;
+                    case 2:
+                        var length = (int) readVarint(data, position);
+                        var bytes = new byte[length];
+                        System.arraycopy(data, position[0], bytes, 0, length);
+                        position[0] += length;
+                        fields.add(new Field(number, wireType, length, bytes));
+                        break;
+                    default:
+                        throw new IllegalStateException("unexpected wire type " + wireType + " of field " + number);
+                }
+            }
+        }
+
+        long varint(int number) {
+            for (var field : fields) {
+                if (field.number == number && field.wireType == 0) return field.value;
+            }
+            return -1;
+        }
+
+        String string(int number) {
+            for (var field : fields) {
+                if (field.number == number && field.wireType == 2) {
+                    return new String(field.bytes, StandardCharsets.UTF_8);
+                }
+            }
+            return null;
+        }
+
+        Message message(int number) {
+            var all = all(number);
+            if (all.isEmpty()) throw new IllegalStateException("no field " + number);
+            return all.get(0);
+        }
+
+        List<Message> all(int number) {
+            var messages = new ArrayList<Message>();
+            for (var field : fields) {
+                if (field.number == number && field.wireType == 2) messages.add(new Message(field.bytes));
+            }
+            return messages;
+        }
+
+        private static long readVarint(byte[] data, int[] position) {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                var b = data[position[0]++];
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package android.app;
+
+public class Activity {
+    protected void onResume() {
+    }
+}
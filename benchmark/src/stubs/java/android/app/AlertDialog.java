@@ -0,0 +1,30 @@
+package android.app;
+
+import android.content.DialogInterface;
+
+public class AlertDialog implements DialogInterface {
+    public static class Builder {
+        public Builder(Activity activity) {
+        }
+
+        public Builder setTitle(CharSequence title) {
+            return this;
+        }
+
+        public Builder setMessage(CharSequence message) {
+            return this;
+        }
+
+        public Builder setCancelable(boolean cancelable) {
+            return this;
+        }
+
+        public Builder setPositiveButton(CharSequence text, DialogInterface.OnClickListener listener) {
+            return this;
+        }
+
+        public AlertDialog show() {
+            return new AlertDialog();
+        }
+    }
+}
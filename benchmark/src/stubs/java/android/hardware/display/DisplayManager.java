@@ -0,0 +1,5 @@
+package android.hardware.display;
+
+public class DisplayManager {
+    public static final int VIRTUAL_DISPLAY_FLAG_SECURE = 1 << 2;
+}
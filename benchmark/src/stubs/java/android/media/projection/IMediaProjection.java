@@ -0,0 +1,4 @@
+package android.media.projection;
+
+public interface IMediaProjection {
+}
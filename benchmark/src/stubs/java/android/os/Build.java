@@ -0,0 +1,24 @@
+package android.os;
+
+/**
+ * Device fields can be overridden with system properties, so the install simulator can
+ * impersonate other SDK levels and ROMs.
+ */
+public class Build {
+    public static final String FINGERPRINT = System.getProperty("android.fingerprint", "benchmark");
+    public static final String MANUFACTURER = System.getProperty("android.manufacturer", "benchmark");
+    public static final String DISPLAY = System.getProperty("android.display", "benchmark");
+
+    public static class VERSION {
+        public static final int SDK_INT = Integer.getInteger("android.sdk", VERSION_CODES.VANILLA_ICE_CREAM);
+    }
+
+    public static class VERSION_CODES {
+        public static final int S = 31;
+        public static final int S_V2 = 32;
+        public static final int TIRAMISU = 33;
+        public static final int UPSIDE_DOWN_CAKE = 34;
+        public static final int VANILLA_ICE_CREAM = 35;
+        public static final int BAKLAVA = 36;
+    }
+}
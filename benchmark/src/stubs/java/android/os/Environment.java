@@ -0,0 +1,12 @@
+package android.os;
+
+import java.io.File;
+
+/**
+ * The data directory can be moved with a system property, so each simulated boot gets its own.
+ */
+public class Environment {
+    public static File getDataDirectory() {
+        return new File(System.getProperty("android.data", "/data"));
+    }
+}
@@ -0,0 +1,15 @@
+package android.os;
+
+public class Process {
+    public static final int ROOT_UID = 0;
+    public static final int SYSTEM_UID = 1000;
+    public static final int SHELL_UID = 2000;
+
+    public static int myPid() {
+        return (int) ProcessHandle.current().pid();
+    }
+
+    public static int myTid() {
+        return (int) Thread.currentThread().getId();
+    }
+}
@@ -0,0 +1,14 @@
+package android.os;
+
+/**
+ * Backed by system properties prefixed with {@code android.prop.}.
+ */
+public class SystemProperties {
+    public static String get(String key) {
+        return get(key, "");
+    }
+
+    public static String get(String key, String def) {
+        return System.getProperty("android.prop." + key, def);
+    }
+}
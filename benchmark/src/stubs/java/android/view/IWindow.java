@@ -0,0 +1,6 @@
+package android.view;
+
+import android.os.IInterface;
+
+public interface IWindow extends IInterface {
+}
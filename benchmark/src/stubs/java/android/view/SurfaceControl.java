@@ -0,0 +1,32 @@
+package android.view;
+
+public class SurfaceControl {
+    public static Object createDisplay(String name, boolean secure) {
+        return null;
+    }
+
+    private static int nativeCaptureDisplay(DisplayCaptureArgs captureArgs, Object captureListener) {
+        return 0;
+    }
+
+    private static int nativeCaptureLayers(LayerCaptureArgs captureArgs, Object captureListener) {
+        return 0;
+    }
+
+    // S~T
+    public static class CaptureArgs {
+        private boolean mCaptureSecureLayers;
+    }
+
+    public static class DisplayCaptureArgs extends CaptureArgs {
+    }
+
+    public static class LayerCaptureArgs extends CaptureArgs {
+    }
+
+    public static class ScreenshotHardwareBuffer {
+        public boolean containsSecureLayers() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package io.github.libxposed.api;
+
+import android.content.SharedPreferences;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+
+public interface XposedInterface {
+    interface Hooker {
+    }
+
+    interface BeforeHookCallback {
+        Member getMember();
+
+        Object getThisObject();
+
+        Object[] getArgs();
+
+        void returnAndSkip(Object result);
+
+        void throwAndSkip(Throwable throwable);
+    }
+
+    interface AfterHookCallback {
+        Member getMember();
+
+        Object getThisObject();
+
+        Object[] getArgs();
+
+        Object getResult();
+
+        Throwable getThrowable();
+
+        boolean isSkipped();
+
+        void setResult(Object result);
+
+        void setThrowable(Throwable throwable);
+    }
+
+    interface MethodUnhooker<T> {
+        T getOrigin();
+
+        void unhook();
+    }
+
+    <T extends Hooker> MethodUnhooker<Method> hook(Method origin, Class<T> hooker);
+
+    <T, U extends Hooker> MethodUnhooker<Constructor<T>> hook(Constructor<T> origin, Class<U> hooker);
+
+    boolean deoptimize(Method method);
+
+    <T> boolean deoptimize(Constructor<T> constructor);
+
+    void log(String message);
+
+    void log(String message, Throwable throwable);
+
+    SharedPreferences getRemotePreferences(String group);
+}
@@ -0,0 +1,52 @@
+package io.github.libxposed.api;
+
+import android.content.SharedPreferences;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * Only what the module calls, forwarded to the framework passed in like the real wrapper does.
+ */
+public abstract class XposedModule implements XposedInterface, XposedModuleInterface {
+    private final XposedInterface base;
+
+    public XposedModule(XposedInterface base, ModuleLoadedParam param) {
+        this.base = base;
+    }
+
+    @Override
+    public <T extends Hooker> MethodUnhooker<Method> hook(Method origin, Class<T> hooker) {
+        return base.hook(origin, hooker);
+    }
+
+    @Override
+    public <T, U extends Hooker> MethodUnhooker<Constructor<T>> hook(Constructor<T> origin, Class<U> hooker) {
+        return base.hook(origin, hooker);
+    }
+
+    @Override
+    public boolean deoptimize(Method method) {
+        return base.deoptimize(method);
+    }
+
+    @Override
+    public <T> boolean deoptimize(Constructor<T> constructor) {
+        return base.deoptimize(constructor);
+    }
+
+    @Override
+    public void log(String message) {
+        base.log(message);
+    }
+
+    @Override
+    public void log(String message, Throwable throwable) {
+        base.log(message, throwable);
+    }
+
+    @Override
+    public SharedPreferences getRemotePreferences(String group) {
+        return base.getRemotePreferences(group);
+    }
+}
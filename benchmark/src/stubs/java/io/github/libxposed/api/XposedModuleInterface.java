@@ -0,0 +1,24 @@
+package io.github.libxposed.api;
+
+public interface XposedModuleInterface {
+    interface ModuleLoadedParam {
+    }
+
+    interface SystemServerLoadedParam {
+        ClassLoader getClassLoader();
+    }
+
+    interface PackageLoadedParam {
+        String getPackageName();
+
+        ClassLoader getClassLoader();
+
+        boolean isFirstPackage();
+    }
+
+    default void onSystemServerLoaded(SystemServerLoadedParam param) {
+    }
+
+    default void onPackageLoaded(PackageLoadedParam param) {
+    }
+}
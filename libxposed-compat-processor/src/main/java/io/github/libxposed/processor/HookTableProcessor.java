@@ -0,0 +1,208 @@
+package io.github.libxposed.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+
+/**
+ * Flattens every {@code @HookTarget} into parallel arrays of a generated {@code HookTable},
+ * the hookers a list since there is no generic array of {@code Class}, grouped by process, so installing hooks needs no reflection beyond the hook itself.
+ */
+public class HookTableProcessor extends AbstractProcessor {
+    private static final String HOOK_TARGET = "io.github.libxposed.api.annotations.HookTarget";
+    private static final String HOOK_TARGET_LIST = HOOK_TARGET + ".List";
+    private static final String TABLE = "HookTable";
+
+    private static final class Row {
+        String process;
+        String className;
+        String method;
+        String signature;
+        int minSdk;
+        int maxSdk;
+        String vendor;
+        boolean critical;
+        String hooker;
+    }
+
+    private final List<Row> rows = new ArrayList<>();
+    private final Set<Element> origins = new LinkedHashSet<>();
+    private String pkg;
+    private boolean written = false;
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Set.of(HOOK_TARGET, HOOK_TARGET_LIST);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (var annotation : annotations) {
+            for (var element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                collect((TypeElement) element);
+            }
+        }
+        // Every hooker is in the sources, so the first round sees all of them
+        if (!written && !rows.isEmpty()) {
+            written = true;
+            try {
+                write();
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "write " + TABLE + " failed: " + e);
+            }
+        }
+        return true;
+    }
+
+    private void collect(TypeElement hooker) {
+        if (!origins.add(hooker)) return;
+        var hookerPkg = processingEnv.getElementUtils().getPackageOf(hooker).getQualifiedName().toString();
+        if (pkg == null) {
+            pkg = hookerPkg;
+        } else if (!pkg.equals(hookerPkg)) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "@HookTarget hookers must share one package, found " + pkg + " and " + hookerPkg, hooker);
+            return;
+        }
+        for (var mirror : hooker.getAnnotationMirrors()) {
+            var type = ((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().toString();
+            if (type.equals(HOOK_TARGET)) {
+                collect(hooker, mirror);
+            } else if (type.equals(HOOK_TARGET_LIST)) {
+                for (var value : list(values(mirror).get("value"))) {
+                    collect(hooker, (AnnotationMirror) value.getValue());
+                }
+            }
+        }
+    }
+
+    private void collect(TypeElement hooker, AnnotationMirror mirror) {
+        var values = values(mirror);
+        String signature = null;
+        if (!(Boolean) values.get("allOverloads").getValue()) {
+            var sb = new StringBuilder((String) values.get("method").getValue()).append('(');
+            for (var type : list(values.get("parameterTypes"))) {
+                sb.append(descriptor((String) type.getValue()));
+            }
+            signature = sb.append(')').toString();
+        }
+        for (var process : list(values.get("process"))) {
+            var row = new Row();
+            row.process = (String) process.getValue();
+            row.className = (String) values.get("className").getValue();
+            row.method = (String) values.get("method").getValue();
+            row.signature = signature;
+            row.minSdk = (Integer) values.get("minSdk").getValue();
+            row.maxSdk = (Integer) values.get("maxSdk").getValue();
+            row.vendor = (String) values.get("vendor").getValue();
+            row.critical = (Boolean) values.get("critical").getValue();
+            row.hooker = hooker.getQualifiedName().toString();
+            rows.add(row);
+        }
+    }
+
+    private Map<String, AnnotationValue> values(AnnotationMirror mirror) {
+        var values = new TreeMap<String, AnnotationValue>();
+        processingEnv.getElementUtils().getElementValuesWithDefaults(mirror)
+                .forEach((ExecutableElement k, AnnotationValue v) -> values.put(k.getSimpleName().toString(), v));
+        return values;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<? extends AnnotationValue> list(AnnotationValue value) {
+        return (List<? extends AnnotationValue>) value.getValue();
+    }
+
+    private static String descriptor(String name) {
+        if (name.endsWith("[]")) return "[" + descriptor(name.substring(0, name.length() - 2));
+        return switch (name) {
+            case "int" -> "I";
+            case "boolean" -> "Z";
+            case "long" -> "J";
+            case "float" -> "F";
+            case "double" -> "D";
+            case "byte" -> "B";
+            case "char" -> "C";
+            case "short" -> "S";
+            default -> "L" + name.replace('.', '/') + ";";
+        };
+    }
+
+    private void write() throws IOException {
+        rows.sort(Comparator.comparing((Row r) -> r.process)
+                .thenComparing(r -> r.className)
+                .thenComparing(r -> r.method));
+        var processes = new ArrayList<String>();
+        var start = new ArrayList<Integer>();
+        for (int i = 0; i < rows.size(); i++) {
+            if (processes.isEmpty() || !processes.get(processes.size() - 1).equals(rows.get(i).process)) {
+                processes.add(rows.get(i).process);
+                start.add(i);
+            }
+        }
+        start.add(rows.size());
+
+        var file = processingEnv.getFiler().createSourceFile(pkg + "." + TABLE, origins.toArray(new Element[0]));
+        try (var out = new PrintWriter(file.openWriter())) {
+            out.println("// Generated by " + getClass().getSimpleName() + ", do not edit.");
+            out.println("package " + pkg + ";");
+            out.println();
+            out.println("import java.util.List;");
+            out.println();
+            out.println("import io.github.libxposed.api.XposedInterface;");
+            out.println();
+            out.println("final class " + TABLE + " {");
+            out.println("    static final String[] PROCESSES = {" + join(processes, HookTableProcessor::quote) + "};");
+            out.println("    // Rows of PROCESSES[i] are [START[i], START[i + 1])");
+            out.println("    static final int[] START = {" + join(start, String::valueOf) + "};");
+            out.println("    static final String[] CLASS = {" + join(rows, r -> quote(r.className)) + "};");
+            out.println("    static final String[] METHOD = {" + join(rows, r -> quote(r.method)) + "};");
+            out.println("    // null for every overload");
+            out.println("    static final String[] SIGNATURE = {" + join(rows, r -> quote(r.signature)) + "};");
+            out.println("    static final int[] MIN_SDK = {" + join(rows, r -> String.valueOf(r.minSdk)) + "};");
+            out.println("    static final int[] MAX_SDK = {" + join(rows, r -> String.valueOf(r.maxSdk)) + "};");
+            out.println("    static final String[] VENDOR = {" + join(rows, r -> quote(r.vendor)) + "};");
+            out.println("    static final boolean[] CRITICAL = {" + join(rows, r -> String.valueOf(r.critical)) + "};");
+            out.println("    static final List<Class<? extends XposedInterface.Hooker>> HOOKER = List.of(" +
+                    join(rows, r -> r.hooker + ".class") + ");");
+            out.println();
+            out.println("    private " + TABLE + "() {");
+            out.println("    }");
+            out.println("}");
+        }
+    }
+
+    private static <T> String join(List<T> items, java.util.function.Function<T, String> format) {
+        var sb = new StringBuilder();
+        for (var item : items) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(format.apply(item));
+        }
+        return sb.toString();
+    }
+
+    private static String quote(String s) {
+        return s == null ? "null" : "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
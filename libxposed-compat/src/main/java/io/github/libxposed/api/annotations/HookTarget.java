@@ -0,0 +1,59 @@
+package io.github.libxposed.api.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares a method the annotated {@link XposedHooker} is installed on. Collected at build time
+ * into a generated {@code HookTable} in the hooker's package.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+@Repeatable(HookTarget.List.class)
+public @interface HookTarget {
+    /**
+     * Binary name of the declaring class.
+     */
+    String className();
+
+    String method();
+
+    /**
+     * Binary names of the parameter types.
+     */
+    String[] parameterTypes() default {};
+
+    /**
+     * Hook every overload named {@link #method()}, ignoring {@link #parameterTypes()}.
+     */
+    boolean allOverloads() default false;
+
+    int minSdk() default 0;
+
+    int maxSdk() default Integer.MAX_VALUE;
+
+    /**
+     * Empty for every ROM.
+     */
+    String vendor() default "";
+
+    /**
+     * Package names, or {@code "system"} for system_server.
+     */
+    String[] process() default {"system"};
+
+    /**
+     * Must be installed before the process continues loading, other hooks may be installed
+     * in parallel off the loading thread.
+     */
+    boolean critical() default false;
+
+    @Retention(RetentionPolicy.SOURCE)
+    @Target(ElementType.TYPE)
+    @interface List {
+        HookTarget[] value();
+    }
+}